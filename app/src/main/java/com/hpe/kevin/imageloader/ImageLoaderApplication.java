@@ -0,0 +1,27 @@
+package com.hpe.kevin.imageloader;
+
+import android.app.Application;
+
+import com.hpe.kevin.imageloader.loader.CanonicalUrlKeyMapper;
+import com.hpe.kevin.imageloader.loader.ImageLoader;
+
+/**
+ * 在进程启动时配置整个进程共用的ImageLoader，只配置一次。
+ * 界面只通过{@link ImageLoader#newScope}持有请求范围，不修改共用的配置。
+ */
+public class ImageLoaderApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ImageLoader imageLoader = ImageLoader.build(this);
+        // 列表中有不少几MB的大图，写入磁盘缓存后在后台缩小转码
+        imageLoader.setTranscodeOnInsert(true);
+        // pexels的dl参数只是下载时的文件名，不影响图片内容
+        CanonicalUrlKeyMapper keyMapper = new CanonicalUrlKeyMapper();
+        keyMapper.stripQueryParameter("dl");
+        keyMapper.setSortQueryParameters(true);
+        keyMapper.setIgnoreScheme(true);
+        imageLoader.setKeyMapper(keyMapper);
+    }
+}
@@ -31,6 +31,7 @@ import java.util.List;
 
 public class MainActivity extends AppCompatActivity implements AbsListView.OnScrollListener {
     private static final String TAG = "MainActivity";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
     // ImageAdapter数据源
     private List<String> mUrList = new ArrayList<String>();
 
@@ -40,7 +41,7 @@ public class MainActivity extends AppCompatActivity implements AbsListView.OnScr
     private boolean mIsWifi;
     private boolean mCanGetBitmapFromNetWork;
     private GridView mImageGridView;
-    private ImageLoader mImageLoader;
+    private ImageLoader.RequestScope mImageLoader;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -60,7 +61,8 @@ public class MainActivity extends AppCompatActivity implements AbsListView.OnScr
         
         initData();
         initView();
-        mImageLoader = ImageLoader.build(MainActivity.this);
+        // 整个进程共用一个ImageLoader(在ImageLoaderApplication中配置)，这个界面只持有一个请求范围，在onDestroy中释放
+        mImageLoader = ImageLoader.newScope(MainActivity.this);
     }
 
     private void initView() {
@@ -141,6 +143,12 @@ public class MainActivity extends AppCompatActivity implements AbsListView.OnScr
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        mImageLoader.release();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -261,7 +269,9 @@ public class MainActivity extends AppCompatActivity implements AbsListView.OnScr
          */
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            Log.d(TAG, "Position=" + position);
+            if (DEBUG) {
+                Log.d(TAG, "Position=" + position);
+            }
             ViewHolder holder = null;
             if (convertView == null) {
                 convertView = mInflater.inflate(R.layout.image_list_item, parent, false);
@@ -274,8 +284,10 @@ public class MainActivity extends AppCompatActivity implements AbsListView.OnScr
             ImageView imageView = holder.imageView;
             final String tag = (String) imageView.getTag();
             final String uri = (String) getItem(position);
-            Log.d(TAG, "tag:" + tag);
-            Log.d(TAG, "uri" + uri);
+            if (DEBUG) {
+                Log.d(TAG, "tag:" + tag);
+                Log.d(TAG, "uri" + uri);
+            }
             if (!uri.equals(tag)) {
                 imageView.setImageDrawable(mDefaultBitmapDrawable);
             }
@@ -0,0 +1,322 @@
+package com.hpe.kevin.imageloader.loader;
+
+import android.util.Log;
+
+import com.hpe.kevin.imageloader.utils.MyUtils;
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按内容寻址的共享数据块。不同URL的内容相同时(CDN镜像、同一张图的多个地址)，数据只在磁盘缓存中保存一份。
+ * <ul>
+ * <li>数据块的key为"blob_"加上内容的SHA-256，第一个value是图片数据，第二个value是"referrers=key1,key2"，
+ * 即引用过它的entry的key；</li>
+ * <li>URL的entry不保存数据，元数据中的{@link ImageMetadata#blobKey}指向数据块；</li>
+ * <li>引用者列表只是线索：淘汰数据块时逐个检查引用者现在的元数据，还有entry指向它时不淘汰。
+ * 所以entry因为任何原因消失(被删除、提交失败、启动时作为脏数据丢弃、进程被杀)，数据块都不会被永远留住；</li>
+ * <li>entry先登记引用再提交，提交完成前数据块在内存中标记为正在使用，不会被淘汰。</li>
+ * </ul>
+ * 需要作为冷数据层的淘汰监听安装到{@link TieredDiskCache}上。所有的数据块都在冷数据层中淘汰，
+ * 冷数据层超出大小、所有entry都不能淘汰时，磁盘缓存仍然会淘汰最久没有使用的数据块，指向它的entry按缓存未命中处理。
+ */
+public class BlobStore implements DiskLruCache.EvictionListener {
+    private static final String TAG = "BlobStore";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final String BLOB_KEY_PREFIX = "blob_";
+    private static final String REFERRERS = "referrers=";
+    private static final int DATA_INDEX = 0;
+    // 数据块的第二个value是引用者列表，entry的第二个value是元数据
+    private static final int REFERRERS_INDEX = 1;
+    private static final int METADATA_INDEX = 1;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final TieredDiskCache mDiskCache;
+    // 引用正在提交的数据块及其个数，只在内存中，进程被杀后提交也不会完成
+    private final Map<String, Integer> mAcquiring = new HashMap<String, Integer>();
+
+    public BlobStore(TieredDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * 是否是数据块的key
+     * @param key
+     * @return
+     */
+    public static boolean isBlobKey(String key) {
+        return key.startsWith(BLOB_KEY_PREFIX);
+    }
+
+    /**
+     * 保存数据块并登记引用者，相同内容的数据块已经存在时只登记引用者。
+     * 数据块在{@link #endAcquire(String)}之前不会被淘汰，引用者的entry需要在这之间提交。
+     * @param referrer 将要指向数据块的entry的key
+     * @param data
+     * @param length
+     * @return 数据块的key
+     * @throws IOException
+     */
+    public synchronized String acquire(String referrer, byte[] data, int length) throws IOException {
+        String blobKey = blobKeyFor(data, length);
+        // 在数据块可见之前标记，冷数据层的淘汰看到的数据块都已经有这个标记
+        synchronized (mAcquiring) {
+            Integer count = mAcquiring.get(blobKey);
+            mAcquiring.put(blobKey, count == null ? 1 : count + 1);
+        }
+        boolean success = false;
+        try {
+            String value = mDiskCache.peekString(blobKey, REFERRERS_INDEX);
+            if (value == null) {
+                Set<String> referrers = new LinkedHashSet<String>();
+                referrers.add(referrer);
+                writeBlob(blobKey, data, length, referrers);
+            } else {
+                Set<String> referrers = parseReferrers(value);
+                if (referrers.add(referrer)) {
+                    writeReferrers(blobKey, referrers);
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                endAcquire(blobKey);
+            }
+        }
+        return blobKey;
+    }
+
+    /**
+     * 引用者的entry已经提交(或者放弃提交)，数据块可以按正常规则淘汰
+     * @param blobKey
+     */
+    public void endAcquire(String blobKey) {
+        synchronized (mAcquiring) {
+            Integer count = mAcquiring.get(blobKey);
+            if (count == null || count <= 1) {
+                mAcquiring.remove(blobKey);
+            } else {
+                mAcquiring.put(blobKey, count - 1);
+            }
+        }
+    }
+
+    /**
+     * 读取数据块
+     * @param blobKey
+     * @return 数据块已经不存在时返回null
+     * @throws IOException
+     */
+    public DiskLruCache.Snapshot get(String blobKey) throws IOException {
+        return mDiskCache.get(blobKey);
+    }
+
+    /**
+     * 取得引用者的数据所在的Snapshot。entry指向共享数据块时关闭entry的Snapshot，改为读取数据块。
+     * 数据块被冷缓存淘汰或者正在从热缓存降级时会暂时不存在，这是正常的情况
+     * @param entry 引用者的Snapshot，返回后由调用者关闭返回值，不再使用entry
+     * @param metadata entry的元数据，为null时按entry中直接保存数据处理
+     * @return 数据块已经不存在时返回null
+     * @throws IOException
+     */
+    public DiskLruCache.Snapshot openData(DiskLruCache.Snapshot entry, ImageMetadata metadata)
+            throws IOException {
+        if (metadata == null || metadata.blobKey == null) {
+            return entry;
+        }
+        entry.close();
+        return get(metadata.blobKey);
+    }
+
+    /**
+     * 去掉一个已经不再指向数据块的引用者，没有引用者时删除数据块。
+     * 引用者仍然指向数据块时什么也不做，所以entry提交后可以对新旧数据块都调用一次。
+     * @param blobKey
+     * @param referrer
+     * @throws IOException
+     */
+    public synchronized void release(String blobKey, String referrer) throws IOException {
+        if (isAcquiring(blobKey) || references(referrer, blobKey)) {
+            // 正在提交的entry可能就是这个引用者，列表中多一个失效的引用者不影响淘汰
+            return;
+        }
+        String value = mDiskCache.peekString(blobKey, REFERRERS_INDEX);
+        if (value == null) {
+            return;
+        }
+        Set<String> referrers = parseReferrers(value);
+        if (!referrers.remove(referrer)) {
+            return;
+        }
+        if (referrers.isEmpty()) {
+            mDiskCache.remove(blobKey);
+            if (DEBUG) {
+                Log.d(TAG, "removed " + blobKey);
+            }
+            return;
+        }
+        writeReferrers(blobKey, referrers);
+    }
+
+    private void writeBlob(String blobKey, byte[] data, int length, Set<String> referrers) throws IOException {
+        DiskLruCache.Editor editor = mDiskCache.edit(blobKey);
+        if (editor == null) {
+            throw new IOException("blob " + blobKey + " is being edited");
+        }
+        try {
+            OutputStream outputStream = editor.newOutputStream(DATA_INDEX);
+            try {
+                outputStream.write(data, 0, length);
+            } finally {
+                MyUtils.close(outputStream);
+            }
+            editor.set(REFERRERS_INDEX, encodeReferrers(referrers));
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    private void writeReferrers(String blobKey, Set<String> referrers) throws IOException {
+        // 只修改第二个value，数据文件保持不变
+        DiskLruCache.Editor editor = mDiskCache.edit(blobKey);
+        if (editor == null) {
+            throw new IOException("blob " + blobKey + " is being edited");
+        }
+        try {
+            editor.set(REFERRERS_INDEX, encodeReferrers(referrers));
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    @Override
+    public boolean canEvict(String key, File[] files) {
+        if (!isBlobKey(key)) {
+            return true;
+        }
+        if (isAcquiring(key)) {
+            return false;
+        }
+        // 在冷数据层的锁中调用，只读很小的元数据文件
+        for (String referrer : parseReferrers(readString(files[REFERRERS_INDEX]))) {
+            if (references(referrer, key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onEntryEvicted(String key, File[] files) {
+        // 指向数据块的entry自己的数据为空
+        if (isBlobKey(key) || files[DATA_INDEX].length() != 0) {
+            return;
+        }
+        ImageMetadata metadata = ImageMetadata.parse(readString(files[METADATA_INDEX]));
+        if (metadata == null || metadata.blobKey == null) {
+            return;
+        }
+        try {
+            release(metadata.blobKey, key);
+        } catch (IOException e) {
+            Log.e(TAG, "Error in release: " + e);
+        } catch (IllegalStateException e) {
+            // 磁盘缓存已经关闭
+        }
+    }
+
+    private boolean isAcquiring(String blobKey) {
+        synchronized (mAcquiring) {
+            return mAcquiring.containsKey(blobKey);
+        }
+    }
+
+    /**
+     * 引用者现在的元数据是否指向数据块。读取失败时保守地认为还在引用
+     */
+    private boolean references(String referrer, String blobKey) {
+        try {
+            ImageMetadata metadata = ImageMetadata.parse(mDiskCache.peekString(referrer, METADATA_INDEX));
+            return metadata != null && blobKey.equals(metadata.blobKey);
+        } catch (IOException e) {
+            return true;
+        } catch (IllegalStateException e) {
+            return true;
+        }
+    }
+
+    private static Set<String> parseReferrers(String value) {
+        Set<String> referrers = new LinkedHashSet<String>();
+        if (value == null || !value.startsWith(REFERRERS)) {
+            return referrers;
+        }
+        for (String referrer : value.substring(REFERRERS.length()).trim().split(",")) {
+            if (referrer.length() > 0) {
+                referrers.add(referrer);
+            }
+        }
+        return referrers;
+    }
+
+    private static String encodeReferrers(Set<String> referrers) {
+        StringBuilder sb = new StringBuilder(REFERRERS);
+        for (String referrer : referrers) {
+            if (sb.length() > REFERRERS.length()) {
+                sb.append(',');
+            }
+            sb.append(referrer);
+        }
+        return sb.toString();
+    }
+
+    private static String readString(File file) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[256];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            MyUtils.close(reader);
+        }
+    }
+
+    private static String blobKeyFor(byte[] data, int length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available");
+        }
+        digest.update(data, 0, length);
+        byte[] hash = digest.digest();
+        char[] chars = new char[BLOB_KEY_PREFIX.length() + hash.length * 2];
+        BLOB_KEY_PREFIX.getChars(0, BLOB_KEY_PREFIX.length(), chars, 0);
+        int pos = BLOB_KEY_PREFIX.length();
+        for (byte b : hash) {
+            chars[pos++] = HEX_DIGITS[(b >> 4) & 0xF];
+            chars[pos++] = HEX_DIGITS[b & 0xF];
+        }
+        return new String(chars);
+    }
+}
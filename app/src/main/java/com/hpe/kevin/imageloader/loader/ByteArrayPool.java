@@ -0,0 +1,94 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.util.ArrayDeque;
+
+/**
+ * 按大小分级的byte数组池，避免每次下载、读磁盘都重新分配缓冲区。
+ * 数组长度按2的幂分级，{@link #get}返回的数组长度不小于请求的长度，用完后通过{@link #put}归还。
+ * 池中保存的总字节数有上限，超过上限或超过最大分级的数组直接交给GC。
+ */
+public class ByteArrayPool {
+    // 最小分级4KB
+    private static final int MIN_SIZE_SHIFT = 12;
+    // 最大分级4MB
+    private static final int MAX_SIZE_SHIFT = 22;
+
+    private final ArrayDeque<byte[]>[] mBuckets;
+    private final int mMaxPooledBytes;
+    private int mPooledBytes;
+
+    /**
+     * @param maxPooledBytes 池中最多保存的字节数
+     */
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(int maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+        mBuckets = new ArrayDeque[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new ArrayDeque<byte[]>();
+        }
+    }
+
+    /**
+     * 取得长度不小于minLength的数组，数组中可能残留之前的数据
+     * @param minLength
+     * @return
+     */
+    public byte[] get(int minLength) {
+        int bucket = bucketFor(minLength);
+        if (bucket < 0) {
+            return new byte[minLength];
+        }
+        synchronized (this) {
+            byte[] buffer = mBuckets[bucket].pollLast();
+            if (buffer != null) {
+                mPooledBytes -= buffer.length;
+                return buffer;
+            }
+        }
+        return new byte[1 << (bucket + MIN_SIZE_SHIFT)];
+    }
+
+    /**
+     * 归还数组。只接收由{@link #get}分配的数组，其他长度的数组会被忽略。
+     * @param buffer
+     */
+    public void put(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int bucket = bucketFor(buffer.length);
+        if (bucket < 0 || buffer.length != 1 << (bucket + MIN_SIZE_SHIFT)) {
+            return;
+        }
+        synchronized (this) {
+            if (mPooledBytes + buffer.length > mMaxPooledBytes) {
+                return;
+            }
+            mBuckets[bucket].addLast(buffer);
+            mPooledBytes += buffer.length;
+        }
+    }
+
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> bucket : mBuckets) {
+            bucket.clear();
+        }
+        mPooledBytes = 0;
+    }
+
+    public synchronized int getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * 返回容纳length字节的最小分级，超过最大分级时返回-1
+     */
+    private static int bucketFor(int length) {
+        if (length <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift > MAX_SIZE_SHIFT ? -1 : shift - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,143 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 根据URL生成缓存key(URL的MD5的十六进制字符串)。
+ * 最近用过的URL和key保存在一个有上限的缓存中，列表滚动时反复绑定同一个URL不需要重新计算。
+ * 每个线程复用自己的MessageDigest和缓冲区，十六进制编码使用查表的方式。
+ * 计算MD5之前先用{@link KeyMapper}规范化URL，调用方也可以直接提供稳定的key。
+ */
+public class CacheKeyGenerator {
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // 调用方提供的key加上这个前缀后再计算MD5，不会和URL的key冲突
+    private static final String STABLE_KEY_PREFIX = "key:";
+
+    private final LinkedHashMap<String, String> mKeys;
+    private final LinkedHashMap<String, String> mStableKeys;
+    private volatile KeyMapper mKeyMapper;
+
+    private final ThreadLocal<Md5Encoder> mEncoders = new ThreadLocal<Md5Encoder>() {
+        @Override
+        protected Md5Encoder initialValue() {
+            return new Md5Encoder();
+        }
+    };
+
+    public CacheKeyGenerator() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries 最多缓存的URL个数
+     */
+    public CacheKeyGenerator(final int maxEntries) {
+        mKeys = new LinkedHashMap<String, String>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        mStableKeys = new LinkedHashMap<String, String>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 设置URL的规范化方式，为null时直接使用原始的URL。已经缓存的key会被清空。
+     * @param keyMapper
+     */
+    public void setKeyMapper(KeyMapper keyMapper) {
+        synchronized (mKeys) {
+            mKeyMapper = keyMapper;
+            mKeys.clear();
+        }
+    }
+
+    /**
+     * 返回URL对应的缓存key，命中时不分配任何对象
+     * @param url
+     * @return
+     */
+    public String keyFor(String url) {
+        synchronized (mKeys) {
+            String key = mKeys.get(url);
+            if (key != null) {
+                return key;
+            }
+        }
+        KeyMapper keyMapper = mKeyMapper;
+        String key = mEncoders.get().encode(keyMapper != null ? keyMapper.map(url) : url);
+        synchronized (mKeys) {
+            // 计算期间更换了KeyMapper时不缓存
+            if (keyMapper == mKeyMapper) {
+                mKeys.put(url, key);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * 返回调用方提供的稳定key对应的缓存key，不经过{@link KeyMapper}
+     * @param stableKey
+     * @return
+     */
+    public String keyForStableKey(String stableKey) {
+        synchronized (mStableKeys) {
+            String key = mStableKeys.get(stableKey);
+            if (key != null) {
+                return key;
+            }
+        }
+        String key = mEncoders.get().encode(STABLE_KEY_PREFIX + stableKey);
+        synchronized (mStableKeys) {
+            mStableKeys.put(stableKey, key);
+        }
+        return key;
+    }
+
+    /** 每个线程各自持有的MD5计算器 */
+    private static final class Md5Encoder {
+        private final MessageDigest mDigest;
+        private final byte[] mHash = new byte[16];
+        private final char[] mHex = new char[32];
+
+        Md5Encoder() {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                digest = null;
+            }
+            mDigest = digest;
+        }
+
+        String encode(String url) {
+            if (mDigest == null) {
+                return String.valueOf(url.hashCode());
+            }
+            try {
+                mDigest.reset();
+                mDigest.update(url.getBytes());
+                mDigest.digest(mHash, 0, mHash.length);
+            } catch (DigestException e) {
+                return String.valueOf(url.hashCode());
+            }
+            for (int i = 0; i < mHash.length; i++) {
+                // 0xFF是int的十六进制，通过和0xFF做位与操作，截取byte转化为int后的低8位。
+                int b = mHash[i] & 0xFF;
+                mHex[i * 2] = HEX_DIGITS[b >>> 4];
+                mHex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(mHex);
+        }
+    }
+}
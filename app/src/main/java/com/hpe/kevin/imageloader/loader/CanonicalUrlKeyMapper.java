@@ -0,0 +1,145 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 规范化URL的{@link KeyMapper}：
+ * <ul>
+ * <li>scheme和host转为小写，去掉默认端口和#后面的部分；</li>
+ * <li>可以把http和https看作同一个地址；</li>
+ * <li>可以把多个host别名映射到同一个host；</li>
+ * <li>可以去掉不影响图片内容的查询参数(例如统计参数、下载文件名)，并按参数名排序。</li>
+ * </ul>
+ * 所有设置需要在开始加载图片之前完成。
+ */
+public class CanonicalUrlKeyMapper implements KeyMapper {
+    private static final Comparator<String> PARAMETER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return name(lhs).compareTo(name(rhs));
+        }
+    };
+
+    private final Set<String> mStrippedParameters = new HashSet<String>();
+    private final Map<String, String> mHostAliases = new HashMap<String, String>();
+    private boolean mIgnoreScheme;
+    private boolean mSortQueryParameters;
+
+    /**
+     * 去掉名为name的查询参数
+     * @param name
+     */
+    public void stripQueryParameter(String name) {
+        mStrippedParameters.add(name);
+    }
+
+    /**
+     * 是否按参数名对查询参数排序
+     * @param sortQueryParameters
+     */
+    public void setSortQueryParameters(boolean sortQueryParameters) {
+        mSortQueryParameters = sortQueryParameters;
+    }
+
+    /**
+     * 是否把http和https看作同一个地址
+     * @param ignoreScheme
+     */
+    public void setIgnoreScheme(boolean ignoreScheme) {
+        mIgnoreScheme = ignoreScheme;
+    }
+
+    /**
+     * 把host别名alias看作host
+     * @param alias
+     * @param host
+     */
+    public void addHostAlias(String alias, String host) {
+        mHostAliases.put(alias.toLowerCase(Locale.US), host.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public String map(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) {
+            return url;
+        }
+        String scheme = url.substring(0, schemeEnd).toLowerCase(Locale.US);
+        int authorityStart = schemeEnd + 3;
+
+        // 去掉#后面的部分，它不会发送给服务器
+        int end = url.indexOf('#', authorityStart);
+        if (end < 0) {
+            end = url.length();
+        }
+        int queryStart = url.indexOf('?', authorityStart);
+        if (queryStart > end) {
+            queryStart = -1;
+        }
+        int pathStart = url.indexOf('/', authorityStart);
+        int authorityEnd = pathStart >= 0 && (queryStart < 0 || pathStart < queryStart)
+                ? pathStart : (queryStart >= 0 ? queryStart : end);
+
+        String host = url.substring(authorityStart, authorityEnd).toLowerCase(Locale.US);
+        if (("http".equals(scheme) && host.endsWith(":80"))
+                || ("https".equals(scheme) && host.endsWith(":443"))) {
+            host = host.substring(0, host.lastIndexOf(':'));
+        }
+        String alias = mHostAliases.get(host);
+        if (alias != null) {
+            host = alias;
+        }
+
+        StringBuilder result = new StringBuilder(url.length());
+        // https统一为http，已经规范的http地址映射后保持不变，升级后原有的缓存仍然有效
+        result.append(mIgnoreScheme && "https".equals(scheme) ? "http" : scheme).append("://");
+        result.append(host);
+        if (queryStart < 0) {
+            result.append(url, authorityEnd, end);
+            return result.toString();
+        }
+        result.append(url, authorityEnd, queryStart);
+
+        String query = canonicalQuery(url.substring(queryStart + 1, end));
+        if (query.length() > 0) {
+            result.append('?').append(query);
+        }
+        return result.toString();
+    }
+
+    private String canonicalQuery(String query) {
+        List<String> parameters = new ArrayList<String>(Arrays.asList(query.split("&")));
+        for (int i = parameters.size() - 1; i >= 0; i--) {
+            String parameter = parameters.get(i);
+            if (parameter.length() == 0 || mStrippedParameters.contains(name(parameter))) {
+                parameters.remove(i);
+            }
+        }
+        if (mSortQueryParameters) {
+            // 只按参数名排序，排序是稳定的，同名参数保持原来的顺序
+            Collections.sort(parameters, PARAMETER_NAME_ORDER);
+        }
+        StringBuilder result = new StringBuilder(query.length());
+        for (String parameter : parameters) {
+            if (result.length() > 0) {
+                result.append('&');
+            }
+            result.append(parameter);
+        }
+        return result.toString();
+    }
+
+    private static String name(String parameter) {
+        int equals = parameter.indexOf('=');
+        return equals >= 0 ? parameter.substring(0, equals) : parameter;
+    }
+}
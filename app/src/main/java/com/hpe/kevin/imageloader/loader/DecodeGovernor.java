@@ -0,0 +1,133 @@
+package com.hpe.kevin.imageloader.loader;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 解码内存的准入控制。
+ * 每次解码前根据bounds的结果估算输出bitmap的字节数，所有正在进行的解码的字节数之和不超过预算。
+ * 这是一个按字节计数的信号量：放不下的大图会等待，而较小的解码可以绕过它先执行。
+ */
+public class DecodeGovernor {
+    private static final String TAG = "DecodeGovernor";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // 大图被小图持续插队超过这个时间后，为它预留额度，防止饿死
+    private static final long STARVATION_TIMEOUT_MS = 500L;
+
+    private long mMaxInFlightBytes;
+    private long mInFlightBytes;
+    // 正在"饥饿"的解码所预留的字节数，0表示没有
+    private long mStarvingBytes;
+
+    public DecodeGovernor(long maxInFlightBytes) {
+        if (maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("maxInFlightBytes <= 0");
+        }
+        mMaxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * 根据bounds解码的结果估算最终bitmap占用的字节数
+     * @param outWidth 原图宽度
+     * @param outHeight 原图高度
+     * @param inSampleSize 采样率
+     * @param config 解码使用的config，为null时按ARGB_8888计算
+     * @return
+     */
+    public static long estimateBytes(int outWidth, int outHeight, int inSampleSize, Bitmap.Config config) {
+        if (outWidth <= 0 || outHeight <= 0) {
+            return 0;
+        }
+        int sampleSize = Math.max(1, inSampleSize);
+        // 解码器对采样后的尺寸向上取整
+        long width = (outWidth + sampleSize - 1) / sampleSize;
+        long height = (outHeight + sampleSize - 1) / sampleSize;
+        return width * height * getBytesPerPixel(config);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * 申请解码额度，放不下时阻塞直到其他解码释放。
+     * 当没有其他解码在进行时，即使单个解码超过预算也会放行。
+     * @param bytes 估算的字节数
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        long start = SystemClock.uptimeMillis();
+        boolean starving = false;
+        try {
+            while (!canAdmit(bytes, starving)) {
+                if (!starving && mStarvingBytes == 0
+                        && SystemClock.uptimeMillis() - start > STARVATION_TIMEOUT_MS) {
+                    starving = true;
+                    mStarvingBytes = bytes;
+                    if (DEBUG) {
+                        Log.d(TAG, "decode starving, reserve bytes:" + bytes);
+                    }
+                }
+                wait(STARVATION_TIMEOUT_MS);
+            }
+        } finally {
+            // 被中断时也要撤销预留，否则预算永远少了这部分，其他解码也不能再预留
+            if (starving) {
+                mStarvingBytes = 0;
+                notifyAll();
+            }
+        }
+        mInFlightBytes += bytes;
+    }
+
+    /**
+     * 释放解码额度，必须和acquire成对调用
+     * @param bytes
+     */
+    public synchronized void release(long bytes) {
+        mInFlightBytes -= bytes;
+        if (mInFlightBytes < 0) {
+            mInFlightBytes = 0;
+        }
+        notifyAll();
+    }
+
+    public synchronized void setMaxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("maxInFlightBytes <= 0");
+        }
+        mMaxInFlightBytes = maxInFlightBytes;
+        notifyAll();
+    }
+
+    public synchronized long getMaxInFlightBytes() {
+        return mMaxInFlightBytes;
+    }
+
+    public synchronized long getInFlightBytes() {
+        return mInFlightBytes;
+    }
+
+    private boolean canAdmit(long bytes, boolean starving) {
+        if (mInFlightBytes == 0) {
+            return true;
+        }
+        long reserved = starving ? 0 : mStarvingBytes;
+        return mInFlightBytes + reserved + bytes <= mMaxInFlightBytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.io.File;
+
+/**
+ * 根据存储的剩余空间计算磁盘缓存的大小。
+ * 缓存大小为可用空间(包括缓存自己已经占用的空间)的一定比例，并限制在最小值和最大值之间。
+ * 存储紧张时缓存随之缩小，空间充足时再变大，而不是空间不足就完全不用磁盘缓存。
+ */
+public class DiskCacheSizer {
+    private final float mFraction;
+    private volatile long mMinSize;
+    private volatile long mMaxSize;
+
+    /**
+     * @param fraction 可用空间中给缓存使用的比例
+     * @param minSize 最小字节数
+     * @param maxSize 最大字节数
+     */
+    public DiskCacheSizer(float fraction, long minSize, long maxSize) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in (0, 1]");
+        }
+        mFraction = fraction;
+        setBounds(minSize, maxSize);
+    }
+
+    /**
+     * 设置缓存大小的范围
+     * @param minSize
+     * @param maxSize
+     */
+    public void setBounds(long minSize, long maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("invalid bounds: " + minSize + ", " + maxSize);
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+    }
+
+    public long getMinSize() {
+        return mMinSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 计算目录中的缓存应该使用的最大字节数
+     * @param directory 缓存目录
+     * @param currentSize 缓存当前占用的字节数，这部分空间缓存缩小后可以释放
+     * @return
+     */
+    public long computeMaxSize(File directory, long currentSize) {
+        long available = getUsableSpace(directory) + currentSize;
+        long size = (long) (available * mFraction);
+        return Math.max(mMinSize, Math.min(mMaxSize, size));
+    }
+
+    /**
+     * 取得指定目录的可用空间
+     * @param path
+     * @return
+     */
+    public static long getUsableSpace(File path) {
+        return path.getUsableSpace();
+    }
+}
@@ -0,0 +1,100 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 压缩图片数据(JPEG/PNG/WebP)的内存缓存，位于bitmap内存缓存和磁盘缓存之间。
+ * 数据保存在Java堆外的direct ByteBuffer中，不增加GC的负担。
+ * 压缩数据比解码后的bitmap小很多，可以让更多的图片只需一次解码就能显示，而不用读磁盘。
+ */
+public class EncodedMemoryCache {
+    // accessOrder为true，按访问顺序排列，头部是最久未使用的
+    private final LinkedHashMap<String, ByteBuffer> mMap =
+            new LinkedHashMap<String, ByteBuffer>(0, 0.75f, true);
+    private int mMaxSize;
+    private int mSize;
+
+    /**
+     * @param maxSize 最多缓存的字节数
+     */
+    public EncodedMemoryCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 返回key对应的压缩数据，不存在时返回null。
+     * 返回的buffer是只读的视图，position为0，limit为数据长度，可以在锁外读取。
+     * @param key
+     * @return
+     */
+    public ByteBuffer get(String key) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mMap.get(key);
+        }
+        return buffer != null ? buffer.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * 把压缩数据复制到堆外内存中缓存起来。超过最大容量的数据不缓存。
+     * @param key
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void put(String key, byte[] data, int offset, int length) {
+        if (length <= 0 || length > maxSize()) {
+            return;
+        }
+        // 在锁外分配和复制
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data, offset, length);
+        buffer.flip();
+        synchronized (this) {
+            ByteBuffer previous = mMap.put(key, buffer);
+            if (previous != null) {
+                mSize -= previous.capacity();
+            }
+            mSize += length;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        ByteBuffer previous = mMap.remove(key);
+        if (previous != null) {
+            mSize -= previous.capacity();
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return mMap.containsKey(key);
+    }
+
+    public synchronized void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = mMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            ByteBuffer evicted = iterator.next().getValue();
+            iterator.remove();
+            mSize -= evicted.capacity();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.hpe.kevin.imageloader.loader;
+
+/**
+ * 从内存中的JPEG数据里解析EXIF(APP1段)的方向和内嵌缩略图的位置。
+ * 只读取需要的几个tag，不复制数据，也不依赖{@code ExifInterface}(它的InputStream构造函数需要API 24)。
+ */
+public class ExifThumbnailReader {
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /** 解析结果 */
+    public static class ExifInfo {
+        /** EXIF方向，取值为ORIENTATION_*常量 */
+        public int orientation = ORIENTATION_UNDEFINED;
+        /** 缩略图在原始数据中的偏移，没有缩略图时为-1 */
+        public int thumbnailOffset = -1;
+        public int thumbnailLength;
+
+        public boolean hasThumbnail() {
+            return thumbnailOffset >= 0 && thumbnailLength > 0;
+        }
+    }
+
+    private final byte[] mData;
+    private final int mEnd;
+    private boolean mLittleEndian;
+
+    private ExifThumbnailReader(byte[] data, int end) {
+        mData = data;
+        mEnd = end;
+    }
+
+    /**
+     * 解析JPEG数据中的EXIF信息
+     * @param data
+     * @param offset
+     * @param length
+     * @return 不是JPEG或者没有EXIF时返回null
+     */
+    public static ExifInfo read(byte[] data, int offset, int length) {
+        int end = offset + length;
+        if (length < 4 || (data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xFF) != MARKER_SOI) {
+            return null;
+        }
+        return new ExifThumbnailReader(data, end).readSegments(offset + 2);
+    }
+
+    /**
+     * 方向是否需要交换宽和高
+     */
+    public static boolean isTransposed(int orientation) {
+        return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+    }
+
+    private ExifInfo readSegments(int pos) {
+        while (pos + 4 <= mEnd) {
+            if ((mData[pos] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = mData[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null;
+            }
+            int segmentLength = readUnsignedShort(pos + 2, false);
+            if (segmentLength < 2 || pos + 2 + segmentLength > mEnd) {
+                return null;
+            }
+            int segmentStart = pos + 4;
+            if (marker == MARKER_APP1 && startsWithExifHeader(segmentStart, segmentLength - 2)) {
+                return readTiff(segmentStart + EXIF_HEADER.length, pos + 2 + segmentLength);
+            }
+            pos += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    private boolean startsWithExifHeader(int pos, int length) {
+        if (length < EXIF_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (mData[pos + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param tiffStart TIFF头的位置，EXIF中的偏移量都相对于这里
+     * @param tiffEnd APP1段的结束位置
+     */
+    private ExifInfo readTiff(int tiffStart, int tiffEnd) {
+        if (tiffStart + 8 > tiffEnd) {
+            return null;
+        }
+        int byteOrder = readUnsignedShort(tiffStart, false);
+        if (byteOrder == 0x4949) {
+            // "II"
+            mLittleEndian = true;
+        } else if (byteOrder == 0x4D4D) {
+            // "MM"
+            mLittleEndian = false;
+        } else {
+            return null;
+        }
+        if (readUnsignedShort(tiffStart + 2, mLittleEndian) != 0x002A) {
+            return null;
+        }
+
+        ExifInfo info = new ExifInfo();
+        // IFD0中是主图的信息，IFD1中是缩略图的信息
+        int ifd1Offset = readIfd(readInt(tiffStart + 4), tiffStart, tiffEnd, info);
+        if (ifd1Offset > 0) {
+            readIfd(ifd1Offset, tiffStart, tiffEnd, info);
+        }
+        if (info.thumbnailOffset >= 0) {
+            // 偏移和长度来自不可信的数据，用减法比较，避免相加时int溢出
+            int tiffLength = tiffEnd - tiffStart;
+            if (info.thumbnailLength <= 0 || info.thumbnailOffset > tiffLength
+                    || info.thumbnailLength > tiffLength - info.thumbnailOffset) {
+                info.thumbnailOffset = -1;
+                info.thumbnailLength = 0;
+            } else {
+                info.thumbnailOffset = tiffStart + info.thumbnailOffset;
+            }
+        }
+        return info;
+    }
+
+    /**
+     * 读取一个IFD中需要的tag
+     * @param ifdOffset IFD相对于TIFF头的偏移
+     * @return 下一个IFD的偏移，没有时返回0
+     */
+    private int readIfd(int ifdOffset, int tiffStart, int tiffEnd, ExifInfo info) {
+        if (ifdOffset < 0 || ifdOffset > tiffEnd - tiffStart - 2) {
+            return 0;
+        }
+        int ifdStart = tiffStart + ifdOffset;
+        int count = readUnsignedShort(ifdStart, mLittleEndian);
+        int entry = ifdStart + 2;
+        if (count * 12 + 4 > tiffEnd - entry) {
+            return 0;
+        }
+        for (int i = 0; i < count; i++, entry += 12) {
+            int tag = readUnsignedShort(entry, mLittleEndian);
+            int type = readUnsignedShort(entry + 2, mLittleEndian);
+            int value;
+            if (type == TYPE_SHORT) {
+                value = readUnsignedShort(entry + 8, mLittleEndian);
+            } else if (type == TYPE_LONG) {
+                value = readInt(entry + 8);
+            } else {
+                continue;
+            }
+            switch (tag) {
+                case TAG_ORIENTATION:
+                    info.orientation = value;
+                    break;
+                case TAG_THUMBNAIL_OFFSET:
+                    info.thumbnailOffset = value;
+                    break;
+                case TAG_THUMBNAIL_LENGTH:
+                    info.thumbnailLength = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return readInt(entry);
+    }
+
+    private int readUnsignedShort(int pos, boolean littleEndian) {
+        int b0 = mData[pos] & 0xFF;
+        int b1 = mData[pos + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private int readInt(int pos) {
+        int high = readUnsignedShort(mLittleEndian ? pos + 2 : pos, mLittleEndian);
+        int low = readUnsignedShort(mLittleEndian ? pos : pos + 2, mLittleEndian);
+        return (high << 16) | low;
+    }
+}
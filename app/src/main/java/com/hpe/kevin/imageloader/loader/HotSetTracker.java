@@ -0,0 +1,230 @@
+package com.hpe.kevin.imageloader.loader;
+
+import com.hpe.kevin.imageloader.utils.MyUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 记录最近显示过的图片(缓存key和目标尺寸)，并保存到文件中。
+ * 进程重新启动后读取这个列表，在后台把这些图片从磁盘缓存预先解码到内存缓存中，第一屏可以直接从内存显示。
+ * 文件格式为每行一个"key width height"，最近显示的在最后。
+ */
+public class HotSetTracker {
+    private static final String MAGIC = "imageloader.hotset";
+    private static final String VERSION = "1";
+
+    /** 一张显示过的图片 */
+    public static final class Target {
+        public String key;
+        public int width;
+        public int height;
+        // 按显示顺序串成的双向链表，空闲的节点通过next串起来
+        Target prev;
+        Target next;
+
+        Target(String key, int width, int height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // 节点在构造时全部分配好，记录满了之后重用最久没有显示的节点。
+    // 用线性探测的开放地址哈希表查找key，不像HashMap那样每次插入都分配节点
+    private final Target[] mTable;
+    private final int mTableMask;
+    // 最久没有显示的在头部，最近显示的在尾部
+    private Target mHead;
+    private Target mTail;
+    private Target mFree;
+
+    /**
+     * @param maxEntries 最多记录的图片个数
+     */
+    public HotSetTracker(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0");
+        }
+        // 装载因子不超过1/2，探测序列很短
+        int tableSize = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        mTable = new Target[tableSize];
+        mTableMask = tableSize - 1;
+        for (int i = 0; i < maxEntries; i++) {
+            Target target = new Target(null, 0, 0);
+            target.next = mFree;
+            mFree = target;
+        }
+    }
+
+    /**
+     * 记录一次显示。不分配任何对象，可以在UI线程中频繁调用。
+     * @param key
+     * @param width
+     * @param height
+     */
+    public void record(String key, int width, int height) {
+        synchronized (mTable) {
+            Target target = find(key);
+            if (target == null) {
+                if (mFree != null) {
+                    target = mFree;
+                    mFree = target.next;
+                    target.next = null;
+                } else {
+                    // 记录满了，重用最久没有显示的节点
+                    target = mHead;
+                    unlink(target);
+                    removeFromTable(target);
+                }
+                target.key = key;
+                addToTable(target);
+            } else {
+                unlink(target);
+            }
+            target.width = width;
+            target.height = height;
+            append(target);
+        }
+    }
+
+    private Target find(String key) {
+        for (int i = indexOf(key); mTable[i] != null; i = (i + 1) & mTableMask) {
+            if (mTable[i].key.equals(key)) {
+                return mTable[i];
+            }
+        }
+        return null;
+    }
+
+    private void addToTable(Target target) {
+        int i = indexOf(target.key);
+        while (mTable[i] != null) {
+            i = (i + 1) & mTableMask;
+        }
+        mTable[i] = target;
+    }
+
+    private void removeFromTable(Target target) {
+        int hole = indexOf(target.key);
+        while (mTable[hole] != target) {
+            hole = (hole + 1) & mTableMask;
+        }
+        mTable[hole] = null;
+        // 把探测序列中后面的节点往前移，填上空位，查找时不会提前遇到空位而中断
+        for (int i = (hole + 1) & mTableMask; mTable[i] != null; i = (i + 1) & mTableMask) {
+            int home = indexOf(mTable[i].key);
+            boolean homeBetween = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+            if (!homeBetween) {
+                mTable[hole] = mTable[i];
+                mTable[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    private int indexOf(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x45d9f3b;
+        return (hash ^ (hash >>> 16)) & mTableMask;
+    }
+
+    private void unlink(Target target) {
+        if (target.prev == null) {
+            mHead = target.next;
+        } else {
+            target.prev.next = target.next;
+        }
+        if (target.next == null) {
+            mTail = target.prev;
+        } else {
+            target.next.prev = target.prev;
+        }
+        target.prev = null;
+        target.next = null;
+    }
+
+    private void append(Target target) {
+        target.prev = mTail;
+        if (mTail == null) {
+            mHead = target;
+        } else {
+            mTail.next = target;
+        }
+        mTail = target;
+    }
+
+    /**
+     * 把记录写入文件，先写临时文件再改名，写到一半时进程被杀也不会留下不完整的文件
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        List<Target> targets = new ArrayList<Target>();
+        synchronized (mTable) {
+            for (Target target = mHead; target != null; target = target.next) {
+                targets.add(new Target(target.key, target.width, target.height));
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n");
+            for (Target target : targets) {
+                writer.write(target.key + " " + target.width + " " + target.height + "\n");
+            }
+        } finally {
+            MyUtils.close(writer);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp);
+        }
+    }
+
+    /**
+     * 读取{@link #save(File)}保存的记录
+     * @param file
+     * @return 最近显示的在前面。文件不存在或者格式不正确时返回空列表
+     */
+    public static List<Target> load(File file) {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        List<Target> targets = new ArrayList<Target>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                return Collections.emptyList();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 3) {
+                    return Collections.emptyList();
+                }
+                targets.add(new Target(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            }
+        } catch (IOException e) {
+            return Collections.emptyList();
+        } catch (NumberFormatException e) {
+            return Collections.emptyList();
+        } finally {
+            MyUtils.close(reader);
+        }
+        Collections.reverse(targets);
+        return targets;
+    }
+}
@@ -1,17 +1,20 @@
 package com.hpe.kevin.imageloader.loader;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.Build;
+import android.graphics.drawable.BitmapDrawable;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.os.StatFs;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.v4.util.Pools;
+import android.util.DisplayMetrics;
 import android.util.Log;
-import android.util.LruCache;
 import android.widget.ImageView;
 
 import com.hpe.kevin.imageloader.R;
@@ -19,16 +22,19 @@ import com.hpe.kevin.imageloader.utils.MyUtils;
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -36,8 +42,14 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 图片加载器，整个进程共用一个实例：一个内存缓存和一个磁盘缓存。
+ * 各个界面通过{@link #newScope(Context)}取得自己的{@link RequestScope}，销毁时调用{@link RequestScope#release()}。
+ */
 public class ImageLoader {
     private static final String TAG = "ImageLoader";
+    // 只有打开了DEBUG级别的日志时才拼接日志字符串
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
     public static final int MESSAGE_POST_RESULT = 1;
 
@@ -48,10 +60,51 @@ public class ImageLoader {
     private static final long KEEP_ALIVE = 10L;
 
     private static final int TAG_KEY_URI = R.id.imageloader_uri;
-    private static final long DISK_CACHE_SIZE = 1024 * 1024 * 50; // 50MB
+    // 磁盘缓存默认使用可用空间的1/10，在5MB到200MB之间
+    private static final float DISK_CACHE_FRACTION = 0.1f;
+    private static final long DISK_CACHE_MIN_SIZE = 1024 * 1024 * 5; // 5MB
+    private static final long DISK_CACHE_MAX_SIZE = 1024 * 1024 * 200; // 200MB
+    // 保存最近显示的图片的个数，大约两屏
+    private static final int HOT_SET_ENTRIES = 64;
+    private static final String HOT_SET_FILE = "imageloader_hotset";
+    // 所有界面释放后等待这么久再释放临时占用的内存，屏幕旋转时界面重建不会触发
+    private static final long IDLE_DELAY_MS = 5 * 1000L;
+    // 保存到文件中的占位图个数，每个最多514字节
+    private static final int PLACEHOLDER_INDEX_ENTRIES = 256;
+    private static final String PLACEHOLDER_INDEX_FILE = "imageloader_placeholders";
+    // 启动时预加载到内存缓存的图片最多占用内存缓存的一半
+    private static final int PRELOAD_CACHE_DIVISOR = 2;
+    // 两次根据剩余空间调整磁盘缓存大小的最短间隔
+    private static final long DISK_CACHE_RESIZE_INTERVAL_MS = 60 * 1000L;
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    // 磁盘缓存的版本，entry的格式变化时加1，旧的缓存会被清空
+    private static final int DISK_CACHE_VERSION = 2;
+    // 每个entry有两个value：图片数据和元数据
+    private static final int DISK_CACHE_VALUE_COUNT = 2;
+    // 磁盘缓存的日志使用二进制格式，打开大缓存时解析更快，日志文件更小
+    private static final boolean DISK_CACHE_BINARY_JOURNAL = true;
     private static final int DISK_CACHE_INDEX = 0;
-    private boolean mIsDiskLruCacheCreated = false;
+    private static final int DISK_METADATA_INDEX = 1;
+    // 内存中最多保存的元数据个数
+    private static final int METADATA_CACHE_ENTRIES = 1024;
+    private static final int BYTE_ARRAY_POOL_SIZE = 1024 * 1024 * 4; // 4MB
+    private static final int ENCODED_CACHE_SIZE = 1024 * 1024 * 16; // 16MB
+    // 缩小后的图片保存到磁盘缓存时的压缩质量
+    private static final int RENDITION_QUALITY = 90;
+    // 预览图的边长为原图的1/4，即面积的1/16
+    private static final int PREVIEW_SCALE = 4;
+    // 同时进行中的解码最多占用最大内存的1/4
+    private static final int DECODE_BUDGET_DIVISOR = 4;
+    // 转码时的压缩质量
+    private static final int TRANSCODE_QUALITY = 80;
+    // 转码后至少比原来小10%才替换
+    private static final float TRANSCODE_MIN_SAVING = 0.1f;
+    private volatile boolean mIsDiskLruCacheCreated = false;
+    private volatile boolean mPreviewOnEvict = true;
+    private volatile boolean mTranscodeOnInsert = false;
+    private volatile boolean mDeduplicatePayloads = false;
+    private volatile int mTranscodeMaxDimension;
+    private long mLastDiskResizeTime;
 
     // 线程工厂，用来创建线程池中的线程。
     private static final ThreadFactory sThreadFactory = new ThreadFactory() {
@@ -63,6 +116,22 @@ public class ImageLoader {
         }
     };
 
+    // 磁盘维护线程的线程工厂
+    private static final ThreadFactory sDiskThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "ImageLoader-disk");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
+    // 单线程执行写缩略图等不影响显示的磁盘操作
+    private static final Executor DISK_EXECUTOR = new ThreadPoolExecutor(
+            0, 1,
+            KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), sDiskThreadFactory);
+
     // 线程池
     public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(
             CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
@@ -79,32 +148,72 @@ public class ImageLoader {
         public void handleMessage(Message msg) {
             LoaderResult result = (LoaderResult) msg.obj;
             ImageView imageView = result.imageView;
-            imageView.setImageBitmap(result.bitmap);
             String uri = (String) imageView.getTag(TAG_KEY_URI);
-            if (uri.equals(result.uri)) {
+            if (result.scope != null && result.scope.isReleased()) {
+                // 界面已经销毁，丢弃结果
+            } else if (result.uri.equals(uri)) {
                 imageView.setImageBitmap(result.bitmap);
             } else {
                 Log.w(TAG, "set image bitmap, but url has changed, ignored!");
             }
+            // 处理完后回收到池中
+            result.recycle();
         }
     };
 
+    // 进程内共用的实例
+    private static ImageLoader sInstance;
+    // 还没有释放的RequestScope个数，由ImageLoader.class保护
+    private int mScopeCount;
+    // 最后一个界面释放后，等待一段时间仍然没有新的界面时才执行onIdle()
+    private final Runnable mIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ImageLoader.class) {
+                if (mScopeCount != 0) {
+                    return;
+                }
+            }
+            onIdle();
+        }
+    };
+
+    private final Pools.SynchronizedPool<LoadBitmapTask> mTaskPool =
+            new Pools.SynchronizedPool<LoadBitmapTask>(MAXIMUM_POOL_SIZE * 2);
+
     private Context mContext;
-    private ImageResizer mImageResizer = new ImageResizer();
-    private LruCache<String, Bitmap> mMemoryCache;
-    private DiskLruCache mDiskLruCache;
+    private CacheKeyGenerator mKeyGenerator = new CacheKeyGenerator();
+    private DecodeGovernor mDecodeGovernor;
+    private ImageResizer mImageResizer;
+    private TinyLfuCache<String, Bitmap> mMemoryCache;
+    private TinyLfuCache<String, Bitmap> mPreviewCache;
+    private MemoryCacheTuner mMemoryCacheTuner;
+    private EncodedMemoryCache mEncodedCache;
+    private ByteArrayPool mByteArrayPool;
+    private TinyLfuCache<String, ImageMetadata> mMetadataCache;
+    private HotSetTracker mHotSet = new HotSetTracker(HOT_SET_ENTRIES);
+    // 进程重新启动后也能在UI线程中直接取得的占位图
+    private PlaceholderIndex mPlaceholders = new PlaceholderIndex(PLACEHOLDER_INDEX_ENTRIES);
+    // 正在后台写入磁盘缓存的key(缩略图或转码后的原图)
+    private final Set<String> mPendingRenditions = Collections.synchronizedSet(new HashSet<String>());
+    private DiskCacheSizer mDiskCacheSizer;
+    // 在后台线程中打开，打开完成(无论成功与否)后mDiskCacheLatch变为0
+    private volatile TieredDiskCache mDiskCache;
+    private volatile BlobStore mBlobStore;
+    private final CountDownLatch mDiskCacheLatch = new CountDownLatch(1);
 
     private ImageLoader(Context context) {
         mContext = context.getApplicationContext();
-        // 取得最大内存
-        int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        // 缓存为最大内存的1/8
-        int cacheSize = maxMemory / 8;
-        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+        // 限制同时进行中的解码所占用的内存，避免大量大图同时解码导致OOM
+        mDecodeGovernor = new DecodeGovernor(Runtime.getRuntime().maxMemory() / DECODE_BUDGET_DIVISOR);
+        mImageResizer = new ImageResizer(mDecodeGovernor);
+        // 根据设备的内存等级决定缓存的初始大小(KB)，运行中再根据命中率调整
+        int cacheSize = MemoryCacheTuner.getInitialCacheSize(mContext);
+        // 分段加锁的W-TinyLFU缓存，UI线程和工作线程之间没有锁竞争，快速滑动也不会冲掉热点图片
+        mMemoryCache = new TinyLfuCache<String, Bitmap>(cacheSize) {
             /**
              * Returns the size of the entry for {@code key} and {@code value} in
-             * user-defined units.  The default implementation returns 1 so that size
-             * is the number of entries and max size is the maximum number of entries.
+             * user-defined units.
              *
              * <p>An entry's size must not change while it is in the cache.
              *
@@ -116,37 +225,332 @@ public class ImageLoader {
                 // 返回bitmap的大小
                 return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
             }
+
+            @Override
+            protected void entryEvictedAfterHit(String key, Bitmap value) {
+                // 被用过的图片被淘汰时保留一张缩小的预览图，下次绑定时可以先显示出来。
+                // 准入被拒绝的新图片、调整大小和清空缓存时淘汰的图片不生成预览图，避免每次淘汰都缩放一次
+                addPreviewToCache(key, value);
+            }
         };
 
-        // 磁盘缓存目录
+        // 预览图缓存为内存缓存的1/16
+        mPreviewCache = new TinyLfuCache<String, Bitmap>(Math.max(1, cacheSize / 16)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return Math.max(1, bitmap.getRowBytes() * bitmap.getHeight() / 1024);
+            }
+        };
+
+        mMemoryCacheTuner = new MemoryCacheTuner(mMemoryCache,
+                MemoryCacheTuner.getMinCacheSize(mContext), MemoryCacheTuner.getMaxCacheSize(mContext));
+
+        // 下载和读磁盘共用的缓冲区池
+        mByteArrayPool = new ByteArrayPool(BYTE_ARRAY_POOL_SIZE);
+
+        // 图片元数据的缓存，按个数计算
+        mMetadataCache = new TinyLfuCache<String, ImageMetadata>(METADATA_CACHE_ENTRIES);
+
+        // 压缩数据的缓存，放在堆外内存中
+        mEncodedCache = new EncodedMemoryCache(ENCODED_CACHE_SIZE);
+
+        // 转码后的最大边长默认为屏幕的长边
+        DisplayMetrics displayMetrics = MyUtils.getScreenMetrics(mContext);
+        mTranscodeMaxDimension = Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+
+        // 磁盘缓存的大小根据剩余空间计算，空间紧张时缩小而不是完全不用
+        mDiskCacheSizer = new DiskCacheSizer(DISK_CACHE_FRACTION, DISK_CACHE_MIN_SIZE, DISK_CACHE_MAX_SIZE);
+        mLastDiskResizeTime = SystemClock.uptimeMillis();
+
+        // 创建目录、读取journal都是磁盘操作，放到后台线程中，构造函数立即返回。
+        // 打开之前，内存缓存可以正常使用，需要读写磁盘的请求在工作线程中等待打开完成。
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // 占位图的索引很小，先于磁盘缓存读取，绑定图片时可以尽早显示占位图
+                    mPlaceholders.load(getPlaceholderIndexFile());
+                    openDiskCache();
+                } finally {
+                    mDiskCacheLatch.countDown();
+                }
+                // 磁盘缓存打开后，预加载上次退出前显示的图片
+                preloadHotSet();
+            }
+        });
+
+        // 应用退到后台或者内存紧张时保存最近显示的图片，进程被杀后下次启动可以预加载
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                    saveHotSetAsync();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                saveHotSetAsync();
+            }
+        });
+    }
+
+    /**
+     * 打开磁盘缓存，在磁盘线程中调用
+     */
+    private void openDiskCache() {
+        // 磁盘缓存目录，外部存储可用时作为冷数据层，内部存储上的目录作为热点层
         File diskCacheDir = getDiskCacheDir(mContext, "bitmap");
         if (!diskCacheDir.exists()) {
             // 创建磁盘缓存目录
             diskCacheDir.mkdirs();
         }
+        File hotCacheDir = new File(mContext.getCacheDir(), "bitmap");
 
-        // 缓存目录的可用空间大于50MB
-        if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
-            try {
-                // 创建DiskLruCache
-                // appVersion表示版本号。当版本号变化时DiskLruCache会清空之前所有的缓存文件，但是实际上不一定会。
-                // valueCount表示单个节点所对应的个数。
-                mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
-                mIsDiskLruCacheCreated = true;
-            } catch (IOException e) {
-                Log.e(TAG, "创建磁盘缓存失败！");
-            }
+        try {
+            // 创建DiskLruCache
+            // appVersion表示版本号。当版本号变化时DiskLruCache会清空之前所有的缓存文件，但是实际上不一定会。
+            // valueCount表示单个节点所对应的个数。
+            TieredDiskCache diskCache = TieredDiskCache.open(hotCacheDir, diskCacheDir, mDiskCacheSizer,
+                    DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT, DISK_CACHE_BINARY_JOURNAL, DISK_EXECUTOR);
+            // 关闭去重后仍然可能有以前写入的数据块，监听总是安装
+            mBlobStore = new BlobStore(diskCache);
+            diskCache.setEvictionListener(mBlobStore);
+            mDiskCache = diskCache;
+            mIsDiskLruCacheCreated = true;
+        } catch (IOException e) {
+            Log.e(TAG, "创建磁盘缓存失败！");
         }
     }
 
     /**
-     * build a new instance of ImageLoader
+     * 等待磁盘缓存打开完成，在工作线程中调用
+     * @return 打开失败或者等待被中断时返回null
+     */
+    private TieredDiskCache getDiskCache() {
+        try {
+            mDiskCacheLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * 取得进程内共用的ImageLoader，第一次调用时创建。
+     * 每个实例都有自己的内存缓存，并且会打开同一个磁盘缓存目录，所以整个进程只创建一个。
      *
      * @param context
      * @return
      */
     public static ImageLoader build(Context context) {
-        return new ImageLoader(context);
+        synchronized (ImageLoader.class) {
+            if (sInstance == null) {
+                sInstance = new ImageLoader(context);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * 为一个界面创建请求范围，持有共用ImageLoader的一个引用。界面销毁时必须调用{@link RequestScope#release()}。
+     * @param context
+     * @return
+     */
+    public static RequestScope newScope(Context context) {
+        ImageLoader loader = build(context);
+        synchronized (ImageLoader.class) {
+            loader.mScopeCount++;
+        }
+        // 旋转屏幕等重建界面时，旧界面先释放，新界面紧接着创建，不应该清空临时占用的内存
+        loader.mMainHandler.removeCallbacks(loader.mIdleRunnable);
+        return loader.new RequestScope();
+    }
+
+    private void releaseScope() {
+        boolean idle;
+        synchronized (ImageLoader.class) {
+            idle = --mScopeCount == 0;
+        }
+        if (idle) {
+            mMainHandler.postDelayed(mIdleRunnable, IDLE_DELAY_MS);
+        }
+    }
+
+    /**
+     * 所有界面都释放{@link #IDLE_DELAY_MS}后仍然没有新的界面时调用：
+     * 释放压缩数据和缓冲区占用的内存，把磁盘缓存的journal写到文件中。
+     * 解码后的bitmap保留在内存缓存中，下一个界面打开时可以直接使用。
+     */
+    private void onIdle() {
+        mEncodedCache.evictAll();
+        mByteArrayPool.clear();
+        saveHotSetAsync();
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                TieredDiskCache diskCache = mDiskCache;
+                if (diskCache == null || diskCache.isClosed()) {
+                    return;
+                }
+                try {
+                    diskCache.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error in flush: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 设置同时进行中的解码可以占用的最大字节数
+     * @param maxDecodeBytes
+     */
+    public void setMaxDecodeBytes(long maxDecodeBytes) {
+        mDecodeGovernor.setMaxInFlightBytes(maxDecodeBytes);
+    }
+
+    /**
+     * 设置内存缓存淘汰bitmap时是否保留缩小的预览图
+     * @param previewOnEvict
+     */
+    public void setPreviewOnEvict(boolean previewOnEvict) {
+        mPreviewOnEvict = previewOnEvict;
+        if (!previewOnEvict) {
+            mPreviewCache.evictAll();
+        }
+    }
+
+    /**
+     * 设置下载的图片写入磁盘缓存后，是否在后台转码为更紧凑的格式。
+     * 超过最大边长的图片会被缩小，不透明的图片转为JPEG，带透明通道的转为WEBP，转码后没有明显变小时保留原数据。
+     * @param transcodeOnInsert
+     */
+    public void setTranscodeOnInsert(boolean transcodeOnInsert) {
+        mTranscodeOnInsert = transcodeOnInsert;
+    }
+
+    /**
+     * 设置写入磁盘缓存时是否按内容去重。打开后内容相同的图片(例如CDN镜像的不同URL)只保存一份数据，
+     * 每个URL的entry只保存元数据和指向数据的引用，同样的磁盘空间可以缓存更多不同的图片。
+     * 写入时需要计算一次SHA-256。
+     * @param deduplicatePayloads
+     */
+    public void setDeduplicatePayloads(boolean deduplicatePayloads) {
+        mDeduplicatePayloads = deduplicatePayloads;
+    }
+
+    /**
+     * 设置转码后图片的最大边长(像素)，默认为屏幕的长边
+     * @param maxDimension
+     */
+    public void setTranscodeMaxDimension(int maxDimension) {
+        if (maxDimension <= 0) {
+            throw new IllegalArgumentException("maxDimension <= 0");
+        }
+        mTranscodeMaxDimension = maxDimension;
+    }
+
+    /**
+     * 设置磁盘缓存大小的范围。实际大小为剩余空间的一定比例，限制在这个范围内，并且定期重新计算。
+     * @param minSize 最小字节数
+     * @param maxSize 最大字节数
+     */
+    public void setDiskCacheSizeBounds(long minSize, long maxSize) {
+        mDiskCacheSizer.setBounds(minSize, maxSize);
+        resizeDiskCacheAsync();
+    }
+
+    /**
+     * 距离上次调整超过一定时间后，在后台根据剩余空间调整磁盘缓存的大小
+     */
+    private void maybeResizeDiskCache() {
+        long now = SystemClock.uptimeMillis();
+        synchronized (mDiskCacheSizer) {
+            if (now - mLastDiskResizeTime < DISK_CACHE_RESIZE_INTERVAL_MS) {
+                return;
+            }
+            mLastDiskResizeTime = now;
+        }
+        resizeDiskCacheAsync();
+    }
+
+    private void resizeDiskCacheAsync() {
+        // 在磁盘线程中执行，一定排在打开磁盘缓存之后
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                TieredDiskCache diskCache = mDiskCache;
+                if (diskCache != null && !diskCache.isClosed()) {
+                    diskCache.updateMaxSize(mDiskCacheSizer);
+                }
+            }
+        });
+    }
+
+    private File getHotSetFile() {
+        return new File(mContext.getCacheDir(), HOT_SET_FILE);
+    }
+
+    private File getPlaceholderIndexFile() {
+        return new File(mContext.getCacheDir(), PLACEHOLDER_INDEX_FILE);
+    }
+
+    /**
+     * 保存最近显示的图片和占位图的索引
+     */
+    private void saveHotSetAsync() {
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHotSet.save(getHotSetFile());
+                } catch (IOException e) {
+                    Log.e(TAG, "Error in save hot set: " + e);
+                }
+                try {
+                    mPlaceholders.save(getPlaceholderIndexFile());
+                } catch (IOException e) {
+                    Log.e(TAG, "Error in save placeholders: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 把上次保存的最近显示的图片从磁盘缓存解码到内存缓存中，在低优先级的磁盘线程中调用。
+     * 最近显示的先加载，内存缓存用到一半时停止。
+     */
+    private void preloadHotSet() {
+        if (mDiskCache == null) {
+            return;
+        }
+        List<HotSetTracker.Target> targets = HotSetTracker.load(getHotSetFile());
+        int preloaded = 0;
+        for (HotSetTracker.Target target : targets) {
+            if (mMemoryCache.size() >= mMemoryCache.maxSize() / PRELOAD_CACHE_DIVISOR) {
+                break;
+            }
+            if (mMemoryCache.peek(target.key) != null) {
+                // 界面已经加载过了
+                continue;
+            }
+            try {
+                if (loadBitmapFromDiskCache(target.key, target.width, target.height) != null) {
+                    preloaded++;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error in preload: " + e);
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "preloaded " + preloaded + " of " + targets.size() + " images");
+        }
     }
 
     /**
@@ -155,8 +559,28 @@ public class ImageLoader {
      * @param bitmap
      */
     private void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-        if (getBitmapFromMemCache(key) == null) {
+        // 只是检查，不算一次访问
+        if (mMemoryCache.peek(key) == null) {
             mMemoryCache.put(key, bitmap);
+            // 原图已经在内存中，不再需要预览图
+            mPreviewCache.remove(key);
+        }
+    }
+
+    /**
+     * 把被淘汰的bitmap缩小后放到预览图缓存中
+     * @param key
+     * @param bitmap
+     */
+    private void addPreviewToCache(String key, Bitmap bitmap) {
+        if (!mPreviewOnEvict || bitmap.isRecycled()) {
+            return;
+        }
+        int width = Math.max(1, bitmap.getWidth() / PREVIEW_SCALE);
+        int height = Math.max(1, bitmap.getHeight() / PREVIEW_SCALE);
+        Bitmap preview = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (preview != null) {
+            mPreviewCache.put(key, preview);
         }
     }
 
@@ -180,6 +604,32 @@ public class ImageLoader {
     }
 
     public void bindBitmap(final String uri, final ImageView imageView, final int reqWidth, final int reqHeight) {
+        bindBitmap(uri, hashKeyFormUrl(uri), imageView, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * 同{@link #bindBitmap(String, ImageView, int, int)}，但是用调用方提供的稳定key作为缓存key，
+     * 同一张图片有多个URL(例如带有签名或者过期时间)时可以共用缓存
+     * @param uri
+     * @param stableKey
+     * @param imageView
+     * @param reqWidth
+     * @param reqHeight
+     */
+    public void bindBitmap(String uri, String stableKey, ImageView imageView, int reqWidth, int reqHeight) {
+        bindBitmap(uri, mKeyGenerator.keyForStableKey(stableKey), imageView, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * 设置生成缓存key之前规范化URL的方式，需要在开始加载图片之前设置
+     * @param keyMapper
+     */
+    public void setKeyMapper(KeyMapper keyMapper) {
+        mKeyGenerator.setKeyMapper(keyMapper);
+    }
+
+    private void bindBitmap(String uri, String key, ImageView imageView, int reqWidth, int reqHeight,
+                            RequestScope scope) {
         // TAG_KEY_URI：必须是唯一的，否则会出现以下错误：
         // The key must be an application-specific resource id.
         // 那么如何保证这种唯一性呢？
@@ -202,26 +652,75 @@ public class ImageLoader {
         //}
         imageView.setTag(TAG_KEY_URI, uri);
 
-        // 先尝试从内存的缓存中取得bitmap
-        Bitmap bitmap = loadBitmapFromMemCache(uri);
+        // 先尝试从内存的缓存中取得bitmap，命中时不分配任何对象
+        Bitmap bitmap = getBitmapFromMemCache(key);
         if (bitmap != null) {
             imageView.setImageBitmap(bitmap);
+            mHotSet.record(key, reqWidth, reqHeight);
             return;
         }
 
-        // 如果内存缓存中不存在，则新起线程加载bitmap
-        Runnable loadBitmapTask = new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "I AM WORKING IN RUNNABLE!");
-                Bitmap bitmap = loadBitmap(uri, reqWidth, reqHeight);
-                if (bitmap != null) {
-                    LoaderResult result = new LoaderResult(imageView, uri, bitmap);
-                    mMainHandler.obtainMessage(MESSAGE_POST_RESULT, result).sendToTarget();
-                }
+        // 有预览图时先显示预览图，原图加载完成后再替换
+        Bitmap preview = mPreviewCache.get(key);
+        if (preview != null) {
+            imageView.setImageBitmap(preview);
+        } else {
+            // 没有预览图时显示下载时生成的低质量占位图
+            showPlaceholder(key, imageView);
+        }
+
+        // 如果内存缓存中不存在，则从池中取得任务，在线程池中加载bitmap
+        THREAD_POOL_EXECUTOR.execute(obtainLoadBitmapTask(uri, key, imageView, reqWidth, reqHeight, scope));
+    }
+
+    /**
+     * 如果内存中有这张图片的低质量占位图，放大后模糊地显示出来
+     * @param key
+     * @param imageView
+     */
+    private void showPlaceholder(String key, ImageView imageView) {
+        byte[] data = mPlaceholders.get(key);
+        if (data == null) {
+            ImageMetadata metadata = mMetadataCache.peek(key);
+            if (metadata == null || metadata.placeholder == null) {
+                return;
             }
-        };
-        THREAD_POOL_EXECUTOR.execute(loadBitmapTask);
+            data = metadata.placeholder;
+        }
+        Bitmap placeholder = PlaceholderCodec.decode(data);
+        if (placeholder != null) {
+            BitmapDrawable drawable = new BitmapDrawable(imageView.getResources(), placeholder);
+            // 放大时使用双线性过滤，得到模糊的效果
+            drawable.setFilterBitmap(true);
+            imageView.setImageDrawable(drawable);
+        }
+    }
+
+    /**
+     * 把元数据放到内存中，有占位图时同时记录到占位图的索引中
+     * @param key
+     * @param metadata
+     */
+    private void cacheMetadata(String key, ImageMetadata metadata) {
+        mMetadataCache.put(key, metadata);
+        if (metadata.placeholder != null) {
+            mPlaceholders.put(key, metadata.placeholder);
+        }
+    }
+
+    private LoadBitmapTask obtainLoadBitmapTask(String uri, String key, ImageView imageView,
+                                                int reqWidth, int reqHeight, RequestScope scope) {
+        LoadBitmapTask task = mTaskPool.acquire();
+        if (task == null) {
+            task = new LoadBitmapTask();
+        }
+        task.uri = uri;
+        task.key = key;
+        task.imageView = imageView;
+        task.reqWidth = reqWidth;
+        task.reqHeight = reqHeight;
+        task.scope = scope;
+        return task;
     }
 
     /**
@@ -233,17 +732,33 @@ public class ImageLoader {
      * @return bitmap, maybe null
      */
     public Bitmap loadBitmap(String uri, int reqWidth, int reqHeight) {
+        return loadBitmap(uri, hashKeyFormUrl(uri), reqWidth, reqHeight, false);
+    }
+
+    /**
+     * @param accessRecorded 这次请求是否已经在内存缓存中记录过访问(bindBitmap已经查过一次)
+     */
+    private Bitmap loadBitmap(String uri, String key, int reqWidth, int reqHeight, boolean accessRecorded) {
+        // 根据最近的命中率调整内存缓存的大小
+        mMemoryCacheTuner.onRequest();
+        // 根据存储的剩余空间调整磁盘缓存的大小
+        maybeResizeDiskCache();
         // load bitmap from memory cache
-        Bitmap bitmap = loadBitmapFromMemCache(uri);
+        // 每次请求只记录一次访问，否则一次加载就会让冷数据的访问频率翻倍
+        Bitmap bitmap = accessRecorded ? mMemoryCache.peek(key) : getBitmapFromMemCache(key);
         if (bitmap != null) {
-            Log.d(TAG, "getBitmapFromMemCache, uri:" + uri);
+            if (DEBUG) {
+                Log.d(TAG, "getBitmapFromMemCache, uri:" + uri);
+            }
             return bitmap;
         }
         // load bitmap from disk cache
         try {
-            bitmap = loadBitmapFromDiskCache(uri, reqWidth, reqHeight);
+            bitmap = loadBitmapFromDiskCache(key, reqWidth, reqHeight);
             if (bitmap != null) {
-                Log.d(TAG, "loadBitmapFromDisk,url:" + uri);
+                if (DEBUG) {
+                    Log.d(TAG, "loadBitmapFromDisk,url:" + uri);
+                }
                 return bitmap;
             }
         } catch (IOException e) {
@@ -252,13 +767,13 @@ public class ImageLoader {
 
         // if disk cache is enabled, download bitmap from network and output bitmap into disk cache
         try {
-            bitmap = downloadBitmapFromHttp(uri, reqWidth, reqHeight);
+            bitmap = downloadBitmapFromHttp(uri, key, reqWidth, reqHeight);
         } catch (IOException e) {
             Log.e(TAG, "Error in downloadBitmapFromHttp: " + e);
         }
 
         // download bitmap from network directly
-        if (bitmap == null && !mIsDiskLruCacheCreated) {
+        if (bitmap == null && (!mIsDiskLruCacheCreated || mDiskCache.isClosed())) {
             Log.w(TAG, "encounter error, DiskLruCache is not created.");
             bitmap = downloadBitmapFromUrl(uri);
         }
@@ -268,39 +783,322 @@ public class ImageLoader {
 
     /**
      * 从磁盘缓存中加载bitmap
-     * @param url
+     * @param key 缓存key
      * @param reqWidth
      * @param reqHeight
      * @return
      * @throws IOException
      */
     private Bitmap loadBitmapFromDiskCache(
-            String url,
+            String key,
             int reqWidth,
             int reqHeight) throws IOException {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             Log.w(TAG, "load bitmap from UI Thread, it's not recommended!");
         }
-        if (mDiskLruCache == null) {
-            return null;
+        String renditionKey = getRenditionKey(key, reqWidth, reqHeight);
+        Bitmap bitmap = null;
+        if (renditionKey != null) {
+            // 先尝试已经缩小过的图片，解码小文件比解码原图快得多
+            bitmap = decodeFromCacheTiers(renditionKey, reqWidth, reqHeight, null);
+        }
+        if (bitmap == null) {
+            // 从原图解码，并把缩小后的结果保存到磁盘缓存中
+            bitmap = decodeFromCacheTiers(key, reqWidth, reqHeight, renditionKey);
+        }
+        if (bitmap != null) {
+            // 从磁盘中加载进来后放到内存中
+            addBitmapToMemoryCache(key, bitmap);
         }
+        return bitmap;
+    }
 
-        Bitmap bitmap = null;
-        String key = hashKeyFormUrl(url);
+    /**
+     * 依次从压缩数据的缓存和磁盘缓存中读取diskKey对应的数据并解码
+     * @param diskKey
+     * @param reqWidth
+     * @param reqHeight
+     * @param renditionKey 不为null时，把解码后的bitmap以这个key保存到磁盘缓存中
+     * @return
+     * @throws IOException
+     */
+    private Bitmap decodeFromCacheTiers(String diskKey, int reqWidth, int reqHeight, String renditionKey)
+            throws IOException {
+        byte[] data;
+        int length;
+        ImageMetadata metadata = mMetadataCache.get(diskKey);
+        // 先尝试从压缩数据的缓存中取得，不用读磁盘
+        ByteBuffer encoded = mEncodedCache.get(diskKey);
+        if (encoded != null) {
+            length = encoded.remaining();
+            data = mByteArrayPool.get(length);
+            encoded.get(data, 0, length);
+        } else {
+            TieredDiskCache diskCache = getDiskCache();
+            if (diskCache == null) {
+                return null;
+            }
+            Payload payload = readPayload(diskCache, diskKey, metadata);
+            if (payload == null) {
+                return null;
+            }
+            data = payload.data;
+            length = payload.length;
+            if (metadata == null && payload.metadata != null) {
+                metadata = payload.metadata;
+                cacheMetadata(diskKey, metadata);
+            }
+            // 压缩数据放到堆外缓存中，下次内存缓存未命中时不用再读磁盘
+            mEncodedCache.put(diskKey, data, 0, length);
+        }
+
+        try {
+            // 有元数据时不需要再解析图片的尺寸
+            Bitmap bitmap = mImageResizer.decodeSampledBitmapFromByteArray(
+                    data, 0, length, reqWidth, reqHeight, metadata);
+            if (bitmap != null && renditionKey != null) {
+                saveRenditionAsync(renditionKey, bitmap, length);
+            }
+            return bitmap;
+        } finally {
+            mByteArrayPool.put(data);
+        }
+    }
+
+    /**
+     * 从磁盘缓存中读取key对应的图片数据，entry指向共享数据块时读取数据块
+     * @param diskCache
+     * @param key
+     * @param metadata 内存中已经有的元数据，为null时从entry中读取
+     * @return 没有缓存或者数据块已经被删除时返回null。数据的缓冲区从mByteArrayPool中取得，用完后需要放回
+     * @throws IOException
+     */
+    private Payload readPayload(TieredDiskCache diskCache, String key, ImageMetadata metadata)
+            throws IOException {
         // 通过get方法得到snapShot对象
-        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-        if (snapshot != null) {
-            // Snapshot可以得到缓存的文件输入流
-            FileInputStream fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-            FileDescriptor fileDescriptor = fileInputStream.getFD();
-            bitmap = mImageResizer.decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight);
-            if (bitmap != null) {
-                // 从磁盘中加载进来后放到内存中
-                addBitmapToMemoryCache(key, bitmap);
+        DiskLruCache.Snapshot snapshot = diskCache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        if (metadata == null || snapshot.getLength(DISK_CACHE_INDEX) == 0) {
+            ImageMetadata stored;
+            try {
+                stored = ImageMetadata.parse(snapshot.getString(DISK_METADATA_INDEX));
+            } catch (IOException e) {
+                snapshot.close();
+                throw e;
+            }
+            metadata = metadata != null ? metadata : stored;
+            // 数据保存在共享数据块中时改为读取数据块
+            snapshot = mBlobStore.openData(snapshot, stored);
+            if (snapshot == null) {
+                return null;
             }
         }
+        try {
+            int length = (int) snapshot.getLength(DISK_CACHE_INDEX);
+            // 从池中取得缓冲区，Snapshot可以得到缓存的文件输入流，按文件长度一次读完
+            byte[] data = mByteArrayPool.get(length);
+            try {
+                readFully(snapshot.getInputStream(DISK_CACHE_INDEX), data, length);
+            } catch (IOException e) {
+                mByteArrayPool.put(data);
+                throw e;
+            }
+            return new Payload(data, length, metadata);
+        } finally {
+            snapshot.close();
+        }
+    }
 
-        return bitmap;
+    /**
+     * 缩小后的图片在磁盘缓存中的key，由原图的key和目标尺寸组成
+     * @param key
+     * @param reqWidth
+     * @param reqHeight
+     * @return 没有指定目标尺寸时返回null
+     */
+    private static String getRenditionKey(String key, int reqWidth, int reqHeight) {
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return null;
+        }
+        return key + "_" + reqWidth + "x" + reqHeight;
+    }
+
+    /**
+     * 在后台线程中把缩小后的bitmap压缩后写入磁盘缓存
+     * @param renditionKey
+     * @param bitmap
+     * @param originalLength 原图的字节数，压缩后不比原图小时不保存
+     */
+    private void saveRenditionAsync(final String renditionKey, final Bitmap bitmap, final int originalLength) {
+        if (mDiskCache == null || !mPendingRenditions.add(renditionKey)) {
+            return;
+        }
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    saveRendition(renditionKey, bitmap, originalLength);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error in saveRendition: " + e);
+                } finally {
+                    mPendingRenditions.remove(renditionKey);
+                }
+            }
+        });
+    }
+
+    private void saveRendition(String renditionKey, Bitmap bitmap, int originalLength) throws IOException {
+        // 不透明的图片用JPEG，带透明通道的用WEBP
+        boolean opaque = !bitmap.hasAlpha();
+        Bitmap.CompressFormat format = opaque ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.WEBP;
+        PoolingByteArrayOutputStream out = new PoolingByteArrayOutputStream(mByteArrayPool, IO_BUFFER_SIZE);
+        try {
+            if (!bitmap.compress(format, RENDITION_QUALITY, out) || out.size() >= originalLength) {
+                return;
+            }
+            DiskLruCache.Editor editor = mDiskCache.edit(renditionKey);
+            if (editor == null) {
+                return;
+            }
+            ImageMetadata metadata = new ImageMetadata(bitmap.getWidth(), bitmap.getHeight(),
+                    opaque ? "image/jpeg" : "image/webp", opaque);
+            mMetadataCache.put(renditionKey, commitEntry(renditionKey, editor, out.getBuffer(), out.size(), metadata));
+            if (DEBUG) {
+                Log.d(TAG, "saved rendition " + renditionKey + ", " + originalLength + " -> " + out.size() + " bytes");
+            }
+        } finally {
+            out.recycle();
+        }
+    }
+
+    /**
+     * 解码一张很小的图片，生成低质量占位图放到元数据中
+     * @param data
+     * @param length
+     * @param metadata
+     * @return
+     */
+    private ImageMetadata addPlaceholder(byte[] data, int length, ImageMetadata metadata) {
+        Bitmap tiny = mImageResizer.decodeSampledBitmapFromByteArray(data, 0, length,
+                PlaceholderCodec.MAX_SIZE, PlaceholderCodec.MAX_SIZE, metadata);
+        if (tiny == null) {
+            return metadata;
+        }
+        byte[] placeholder = PlaceholderCodec.encode(tiny);
+        return placeholder != null ? metadata.withPlaceholder(placeholder) : metadata;
+    }
+
+    /**
+     * 把图片数据和元数据写入editor并提交，失败时回退。
+     * 打开去重时数据写入共享数据块，entry只保存指向数据块的元数据。
+     * @param key editor对应的key
+     * @param editor
+     * @param data
+     * @param length
+     * @param metadata
+     * @return 实际保存的元数据
+     * @throws IOException
+     */
+    private ImageMetadata commitEntry(String key, DiskLruCache.Editor editor, byte[] data, int length,
+                                      ImageMetadata metadata) throws IOException {
+        // entry原来引用的数据块，新数据提交后释放
+        ImageMetadata old = ImageMetadata.parse(editor.getString(DISK_METADATA_INDEX));
+        String oldBlobKey = old != null ? old.blobKey : null;
+        String blobKey = null;
+        try {
+            if (mDeduplicatePayloads) {
+                // 先登记引用再提交entry，提交完成前数据块不会被淘汰
+                blobKey = mBlobStore.acquire(key, data, length);
+                length = 0;
+            }
+            metadata = metadata.withBlobKey(blobKey);
+            OutputStream outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
+            try {
+                outputStream.write(data, 0, length);
+            } finally {
+                MyUtils.close(outputStream);
+            }
+            editor.set(DISK_METADATA_INDEX, metadata.encode());
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+            if (blobKey != null) {
+                mBlobStore.endAcquire(blobKey);
+            }
+            // 提交失败时新数据块的引用不成立，提交成功时旧数据块的引用不成立；仍然成立的引用release不会去掉
+            releaseBlob(blobKey, key);
+            releaseBlob(oldBlobKey, key);
+        }
+        return metadata;
+    }
+
+    private void releaseBlob(String blobKey, String key) {
+        if (blobKey == null) {
+            return;
+        }
+        try {
+            mBlobStore.release(blobKey, key);
+        } catch (IOException e) {
+            Log.e(TAG, "Error in releaseBlob: " + e);
+        }
+    }
+
+    /**
+     * 取得图片的元数据(宽、高、MIME类型等)，可以在加载图片前先完成布局。宽和高是按EXIF方向旋转后显示时的大小。
+     * 内存中没有时会读磁盘缓存，不要在UI线程中调用。
+     * @param uri
+     * @return 图片还没有缓存时返回null
+     */
+    public ImageMetadata getImageMetadata(String uri) {
+        String key = hashKeyFormUrl(uri);
+        ImageMetadata metadata = mMetadataCache.get(key);
+        if (metadata != null) {
+            return metadata;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "load metadata from UI Thread, it's not recommended!");
+        }
+        try {
+            TieredDiskCache diskCache = getDiskCache();
+            if (diskCache == null) {
+                return null;
+            }
+            DiskLruCache.Snapshot snapshot = diskCache.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            try {
+                metadata = ImageMetadata.parse(snapshot.getString(DISK_METADATA_INDEX));
+            } finally {
+                snapshot.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error in getImageMetadata: " + e);
+        }
+        if (metadata != null) {
+            cacheMetadata(key, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * 从输入流中读取指定长度的数据到data中
+     * @param in
+     * @param data
+     * @param length
+     * @throws IOException
+     */
+    private void readFully(InputStream in, byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(data, offset, length - offset);
+            if (count == -1) {
+                throw new EOFException("expected " + length + " bytes but got " + offset);
+            }
+            offset += count;
+        }
     }
 
     /**
@@ -311,15 +1109,15 @@ public class ImageLoader {
      */
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        InputStream in = null;
+        // 使用池中的缓冲区按块复制，不再逐字节读写
+        byte[] buffer = mByteArrayPool.get(IO_BUFFER_SIZE);
         try {
             urlConnection = (HttpURLConnection) new URL(urlString).openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-            int b = -1;
-            while ( (b = in.read()) != -1) {
-                out.write(b);
+            in = urlConnection.getInputStream();
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
             }
             return true;
         } catch (IOException e) {
@@ -328,8 +1126,9 @@ public class ImageLoader {
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
-            MyUtils.close(out);
+            MyUtils.close(outputStream);
             MyUtils.close(in);
+            mByteArrayPool.put(buffer);
         }
 
         return false;
@@ -338,35 +1137,146 @@ public class ImageLoader {
     /**
      * download Bitmap from url, and then output the bitmap into disk cache
      * @param url
+     * @param key 缓存key
      * @param reqWidth
      * @param reqHeight
      * @return
      */
-    private Bitmap downloadBitmapFromHttp(String url, int reqWidth, int reqHeight) throws IOException {
+    private Bitmap downloadBitmapFromHttp(String url, String key, int reqWidth, int reqHeight) throws IOException {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             throw new RuntimeException("can not visit network from UI Thread.");
         }
-        if (mDiskLruCache == null) {
+        TieredDiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
             return null;
         }
 
-        String key = hashKeyFormUrl(url);
         // DiskLruCache的缓存添加通过Editor完成，Editor表示一个缓存对象的编辑对象。
         // 对于key而言，如果当前不存在其他Editor对象，那么edit()就会返回一个新的Editor对象，通过它可以得到一个输出流。
-        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        DiskLruCache.Editor editor = diskCache.edit(key);
+        boolean committed = false;
         if (editor != null) {
-            // 由于前面在DiskLruCache的open方法中设置了一个节点只能有一个数据，因此DISK_CACHE_INDEX常量直接设为0。
-            OutputStream outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
-            if (downloadUrlToStream(url, outputStream)) {
-                // downloadUrlToStream方法并没有真正地将图片写入文件系统，还必须通过Editor的commit()来提交写入操作。
-                editor.commit();
-            } else {
-                // 如果图片下载过程发生异常，可以通过Editor的abort()来回退整个操作。
-                editor.abort();
+            // 先下载到内存中，解析出图片的元数据后，和图片数据一起写入。
+            // 一个节点有两个数据：DISK_CACHE_INDEX是图片数据，DISK_METADATA_INDEX是元数据。
+            PoolingByteArrayOutputStream out = new PoolingByteArrayOutputStream(mByteArrayPool);
+            try {
+                ImageMetadata metadata = null;
+                if (downloadUrlToStream(url, out)) {
+                    metadata = ImageMetadata.decodeBounds(out.getBuffer(), 0, out.size());
+                }
+                if (metadata != null) {
+                    metadata = addPlaceholder(out.getBuffer(), out.size(), metadata);
+                }
+                if (metadata != null) {
+                    // 还必须通过Editor的commit()来提交写入操作。
+                    metadata = commitEntry(key, editor, out.getBuffer(), out.size(), metadata);
+                    committed = true;
+                    cacheMetadata(key, metadata);
+                    // 刚下载的数据直接放到压缩数据的缓存中，接下来解码时不用再读磁盘
+                    mEncodedCache.put(key, out.getBuffer(), 0, out.size());
+                } else {
+                    // 如果图片下载过程发生异常，或者下载到的不是图片，可以通过Editor的abort()来回退整个操作。
+                    editor.abort();
+                }
+            } finally {
+                out.recycle();
             }
-            mDiskLruCache.flush();
+            // 不需要flush，日志由DiskLruCache的日志线程成批写入
+        }
+        Bitmap bitmap = loadBitmapFromDiskCache(key, reqWidth, reqHeight);
+        if (committed && mTranscodeOnInsert) {
+            // 先完成第一次显示，再在后台转码
+            transcodeAsync(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 在后台线程中把磁盘缓存中的原图转码为更紧凑的格式
+     * @param key
+     */
+    private void transcodeAsync(final String key) {
+        if (mDiskCache == null || !mPendingRenditions.add(key)) {
+            return;
+        }
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transcode(key);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error in transcode: " + e);
+                } finally {
+                    mPendingRenditions.remove(key);
+                }
+            }
+        });
+    }
+
+    private void transcode(String key) throws IOException {
+        byte[] data;
+        int length;
+        ImageMetadata metadata = mMetadataCache.get(key);
+        ByteBuffer encoded = mEncodedCache.get(key);
+        if (encoded != null) {
+            length = encoded.remaining();
+            data = mByteArrayPool.get(length);
+            encoded.get(data, 0, length);
+        } else {
+            Payload payload = readPayload(mDiskCache, key, metadata);
+            if (payload == null) {
+                return;
+            }
+            data = payload.data;
+            length = payload.length;
+            metadata = payload.metadata;
+        }
+
+        int maxDimension = mTranscodeMaxDimension;
+        Bitmap bitmap;
+        try {
+            // 按2的幂采样到不小于最大边长，EXIF方向在解码时已经处理
+            bitmap = mImageResizer.decodeSampledBitmapFromByteArray(data, 0, length,
+                    maxDimension, maxDimension, metadata);
+        } finally {
+            mByteArrayPool.put(data);
+        }
+        if (bitmap == null) {
+            return;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width > maxDimension || height > maxDimension) {
+            float scale = (float) maxDimension / Math.max(width, height);
+            width = Math.max(1, Math.round(width * scale));
+            height = Math.max(1, Math.round(height * scale));
+            bitmap = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        }
+
+        boolean opaque = !bitmap.hasAlpha();
+        Bitmap.CompressFormat format = opaque ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.WEBP;
+        PoolingByteArrayOutputStream out = new PoolingByteArrayOutputStream(mByteArrayPool, IO_BUFFER_SIZE);
+        try {
+            if (!bitmap.compress(format, TRANSCODE_QUALITY, out)
+                    || out.size() > length * (1 - TRANSCODE_MIN_SAVING)) {
+                return;
+            }
+            DiskLruCache.Editor editor = mDiskCache.edit(key);
+            if (editor == null) {
+                return;
+            }
+            // 保留下载时生成的占位图
+            ImageMetadata transcoded = new ImageMetadata(width, height,
+                    opaque ? "image/jpeg" : "image/webp", opaque,
+                    metadata != null ? metadata.placeholder : null);
+            cacheMetadata(key, commitEntry(key, editor, out.getBuffer(), out.size(), transcoded));
+            mEncodedCache.put(key, out.getBuffer(), 0, out.size());
+            if (DEBUG) {
+                Log.d(TAG, "transcoded " + key + ", " + length + " -> " + out.size() + " bytes");
+            }
+        } finally {
+            out.recycle();
         }
-        return loadBitmapFromDiskCache(url, reqWidth, reqHeight);
     }
 
     /**
@@ -394,50 +1304,12 @@ public class ImageLoader {
     }
 
     /**
-     * load bitmap from memory cache
-     *
-     * @param url
-     * @return
-     */
-    private Bitmap loadBitmapFromMemCache(String url) {
-        final String key = hashKeyFormUrl(url);
-        return getBitmapFromMemCache(key);
-    }
-
-    /**
-     * 根据URL生成缓存key
+     * 根据URL生成缓存key，URL先经过{@link KeyMapper}规范化
      * @param url
      * @return
      */
     private String hashKeyFormUrl(String url) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(url.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(url.hashCode());
-        }
-        return cacheKey;
-    }
-
-    /**
-     * 将byte数组转化成十六进制字符串
-     * @param bytes
-     * @return
-     */
-    private String bytesToHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            // 0xFF是int的十六进制，int型有32位，0xFF的高24位为0。
-            // 而byte要转化为int的时候，高24位会补1，通过和0xFF做位与操作，截取byte转化为int后的低8位。
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append("0");
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+        return mKeyGenerator.keyFor(url);
     }
 
     /**
@@ -453,38 +1325,159 @@ public class ImageLoader {
         if (externalStorageAvailable) {
             // 应用在外部存储上的缓存目录
             cachePath = context.getExternalCacheDir().getPath();
-            Log.d(TAG, "外部存储上的缓存目录:" + cachePath);
+            if (DEBUG) {
+                Log.d(TAG, "外部存储上的缓存目录:" + cachePath);
+            }
         } else {
             // 应用在内部存储上的缓存目录
             cachePath = context.getCacheDir().getPath();
-            Log.d(TAG, "内部存储上的缓存目录:" + cachePath);
+            if (DEBUG) {
+                Log.d(TAG, "内部存储上的缓存目录:" + cachePath);
+            }
         }
 
         return new File(cachePath + File.separator + uniqueName);
     }
 
     /**
-     * 取得指定目录的可用空间
-     * @param path
-     * @return
+     * 一个界面的请求范围。通过它发起的请求在{@link #release()}之后不再加载，已经加载完的结果也不再设置到ImageView上。
+     * 所有范围都释放后，共用的ImageLoader释放临时占用的内存。
+     */
+    public final class RequestScope {
+        private volatile boolean mReleased;
+
+        private RequestScope() {
+        }
+
+        /** 取得共用的ImageLoader，用来修改全局的设置 */
+        public ImageLoader getImageLoader() {
+            return ImageLoader.this;
+        }
+
+        public void bindBitmap(String uri, ImageView imageView) {
+            bindBitmap(uri, imageView, 0, 0);
+        }
+
+        /**
+         * 同{@link ImageLoader#bindBitmap(String, ImageView, int, int)}，需要在UI线程中调用
+         */
+        public void bindBitmap(String uri, ImageView imageView, int reqWidth, int reqHeight) {
+            if (mReleased) {
+                Log.w(TAG, "bindBitmap after the scope was released, ignored!");
+                return;
+            }
+            ImageLoader.this.bindBitmap(uri, hashKeyFormUrl(uri), imageView, reqWidth, reqHeight, this);
+        }
+
+        /**
+         * 同{@link ImageLoader#bindBitmap(String, String, ImageView, int, int)}，需要在UI线程中调用
+         */
+        public void bindBitmap(String uri, String stableKey, ImageView imageView, int reqWidth, int reqHeight) {
+            if (mReleased) {
+                Log.w(TAG, "bindBitmap after the scope was released, ignored!");
+                return;
+            }
+            ImageLoader.this.bindBitmap(uri, mKeyGenerator.keyForStableKey(stableKey), imageView,
+                    reqWidth, reqHeight, this);
+        }
+
+        public boolean isReleased() {
+            return mReleased;
+        }
+
+        /**
+         * 释放对共用ImageLoader的引用，重复调用没有影响
+         */
+        public void release() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            releaseScope();
+        }
+    }
+
+    /**
+     * 加载bitmap的任务，执行完后回收到池中重复使用
      */
-    private long getUsableSpace(File path) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            return path.getUsableSpace();
+    private class LoadBitmapTask implements Runnable {
+        String uri;
+        String key;
+        ImageView imageView;
+        int reqWidth;
+        int reqHeight;
+        RequestScope scope;
+
+        @Override
+        public void run() {
+            String uri = this.uri;
+            String key = this.key;
+            ImageView imageView = this.imageView;
+            int reqWidth = this.reqWidth;
+            int reqHeight = this.reqHeight;
+            RequestScope scope = this.scope;
+            // 参数取出后任务就可以回收了
+            this.uri = null;
+            this.key = null;
+            this.imageView = null;
+            this.scope = null;
+            mTaskPool.release(this);
+
+            if (scope != null && scope.isReleased()) {
+                // 发起请求的界面已经销毁
+                return;
+            }
+            Bitmap bitmap = loadBitmap(uri, key, reqWidth, reqHeight, true);
+            if (bitmap != null) {
+                mHotSet.record(key, reqWidth, reqHeight);
+                LoaderResult result = LoaderResult.obtain(imageView, uri, bitmap, scope);
+                Message.obtain(mMainHandler, MESSAGE_POST_RESULT, result).sendToTarget();
+            }
         }
-        final StatFs stats = new StatFs(path.getPath());
-        return stats.getBlockSizeLong() * stats.getAvailableBlocksLong();
     }
 
     private static class LoaderResult {
+        private static final Pools.SynchronizedPool<LoaderResult> sPool =
+                new Pools.SynchronizedPool<LoaderResult>(MAXIMUM_POOL_SIZE * 2);
+
         public ImageView imageView;
         public String uri;
         public Bitmap bitmap;
+        public RequestScope scope;
+
+        public static LoaderResult obtain(ImageView imageView, String uri, Bitmap bitmap, RequestScope scope) {
+            LoaderResult result = sPool.acquire();
+            if (result == null) {
+                result = new LoaderResult();
+            }
+            result.imageView = imageView;
+            result.uri = uri;
+            result.bitmap = bitmap;
+            result.scope = scope;
+            return result;
+        }
+
+        public void recycle() {
+            imageView = null;
+            uri = null;
+            bitmap = null;
+            scope = null;
+            sPool.release(this);
+        }
+    }
+
+    /** 从磁盘缓存中读出的图片数据和元数据 */
+    private static class Payload {
+        final byte[] data;
+        final int length;
+        final ImageMetadata metadata;
 
-        public LoaderResult(ImageView imageView, String uri, Bitmap bitmap) {
-            this.imageView = imageView;
-            this.uri = uri;
-            this.bitmap = bitmap;
+        Payload(byte[] data, int length, ImageMetadata metadata) {
+            this.data = data;
+            this.length = length;
+            this.metadata = metadata;
         }
     }
 }
@@ -0,0 +1,192 @@
+package com.hpe.kevin.imageloader.loader;
+
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+
+/**
+ * 图片的元数据：显示方向的宽、高、MIME类型、是否不透明，以及可选的EXIF方向、低质量占位图和共享数据块的key。
+ * 下载时计算一次，作为磁盘缓存entry的第二个value保存，之后解码时不需要再做一次inJustDecodeBounds。
+ * 保存格式为每行一个"name=value"，读取时忽略不认识的字段。
+ */
+public class ImageMetadata {
+    private static final String WIDTH = "width";
+    private static final String HEIGHT = "height";
+    private static final String MIME_TYPE = "mime";
+    private static final String OPAQUE = "opaque";
+    private static final String PLACEHOLDER = "placeholder";
+    private static final String BLOB_KEY = "blob";
+    private static final String ORIENTATION = "orientation";
+
+    /** 显示时的宽和高，EXIF方向为旋转90度时已经和编码的像素交换过 */
+    public final int width;
+    public final int height;
+    public final String mimeType;
+    public final boolean opaque;
+    /** {@link PlaceholderCodec}编码的占位图，可能为null */
+    public final byte[] placeholder;
+    /** 图片数据保存在{@link BlobStore}中时为数据块的key，entry自己的数据为空；否则为null */
+    public final String blobKey;
+    /**
+     * EXIF方向，取值为{@link ExifThumbnailReader}的ORIENTATION_*常量。
+     * 为ORIENTATION_UNDEFINED时宽和高就是编码的像素的宽和高(包括没有记录方向的旧数据)
+     */
+    public final int orientation;
+
+    public ImageMetadata(int width, int height, String mimeType, boolean opaque) {
+        this(width, height, mimeType, opaque, null);
+    }
+
+    public ImageMetadata(int width, int height, String mimeType, boolean opaque, byte[] placeholder) {
+        this(width, height, mimeType, opaque, placeholder, null);
+    }
+
+    public ImageMetadata(int width, int height, String mimeType, boolean opaque, byte[] placeholder,
+                         String blobKey) {
+        this(width, height, mimeType, opaque, placeholder, blobKey, ExifThumbnailReader.ORIENTATION_UNDEFINED);
+    }
+
+    public ImageMetadata(int width, int height, String mimeType, boolean opaque, byte[] placeholder,
+                         String blobKey, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+        this.opaque = opaque;
+        this.placeholder = placeholder;
+        this.blobKey = blobKey;
+        this.orientation = orientation;
+    }
+
+    /**
+     * 返回带有占位图的元数据
+     * @param placeholder
+     * @return
+     */
+    public ImageMetadata withPlaceholder(byte[] placeholder) {
+        return new ImageMetadata(width, height, mimeType, opaque, placeholder, blobKey, orientation);
+    }
+
+    /**
+     * 返回指向共享数据块的元数据
+     * @param blobKey 为null时表示数据保存在entry自己中
+     * @return
+     */
+    public ImageMetadata withBlobKey(String blobKey) {
+        return new ImageMetadata(width, height, mimeType, opaque, placeholder, blobKey, orientation);
+    }
+
+    /**
+     * 如果需要旋转90度显示，返回编码的像素的宽，否则就是{@link #width}
+     */
+    public int encodedWidth() {
+        return ExifThumbnailReader.isTransposed(orientation) ? height : width;
+    }
+
+    /**
+     * 如果需要旋转90度显示，返回编码的像素的高，否则就是{@link #height}
+     */
+    public int encodedHeight() {
+        return ExifThumbnailReader.isTransposed(orientation) ? width : height;
+    }
+
+    /**
+     * 解析压缩图片数据的头部，取得元数据。JPEG的EXIF方向为旋转90度时交换宽和高，得到显示时的大小
+     * @param data
+     * @param offset
+     * @param length
+     * @return 数据不是可以解码的图片时返回null
+     */
+    public static ImageMetadata decodeBounds(byte[] data, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        // JPEG没有透明通道，其他格式不解码无法确定，按有透明通道处理
+        boolean opaque = "image/jpeg".equals(options.outMimeType);
+        int orientation = ExifThumbnailReader.ORIENTATION_UNDEFINED;
+        if (opaque) {
+            ExifThumbnailReader.ExifInfo exif = ExifThumbnailReader.read(data, offset, length);
+            if (exif != null) {
+                orientation = exif.orientation;
+            }
+        }
+        boolean transposed = ExifThumbnailReader.isTransposed(orientation);
+        return new ImageMetadata(transposed ? options.outHeight : options.outWidth,
+                transposed ? options.outWidth : options.outHeight,
+                options.outMimeType, opaque, null, null, orientation);
+    }
+
+    /**
+     * 解析{@link #encode()}生成的字符串
+     * @param value
+     * @return 格式不正确时返回null
+     */
+    public static ImageMetadata parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        int width = -1;
+        int height = -1;
+        String mimeType = null;
+        boolean opaque = false;
+        byte[] placeholder = null;
+        String blobKey = null;
+        int orientation = ExifThumbnailReader.ORIENTATION_UNDEFINED;
+        try {
+            for (String line : value.split("\n")) {
+                int separator = line.indexOf('=');
+                if (separator <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, separator);
+                String field = line.substring(separator + 1);
+                if (WIDTH.equals(name)) {
+                    width = Integer.parseInt(field);
+                } else if (HEIGHT.equals(name)) {
+                    height = Integer.parseInt(field);
+                } else if (MIME_TYPE.equals(name)) {
+                    mimeType = field.isEmpty() ? null : field;
+                } else if (OPAQUE.equals(name)) {
+                    opaque = "1".equals(field);
+                } else if (PLACEHOLDER.equals(name)) {
+                    placeholder = Base64.decode(field, Base64.NO_WRAP);
+                } else if (BLOB_KEY.equals(name)) {
+                    blobKey = field.isEmpty() ? null : field;
+                } else if (ORIENTATION.equals(name)) {
+                    orientation = Integer.parseInt(field);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // 包括NumberFormatException和Base64格式错误
+            return null;
+        }
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageMetadata(width, height, mimeType, opaque, placeholder, blobKey, orientation);
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(WIDTH).append('=').append(width).append('\n');
+        sb.append(HEIGHT).append('=').append(height).append('\n');
+        sb.append(MIME_TYPE).append('=').append(mimeType != null ? mimeType : "").append('\n');
+        sb.append(OPAQUE).append('=').append(opaque ? 1 : 0).append('\n');
+        if (placeholder != null) {
+            sb.append(PLACEHOLDER).append('=').append(Base64.encodeToString(placeholder, Base64.NO_WRAP)).append('\n');
+        }
+        if (blobKey != null) {
+            sb.append(BLOB_KEY).append('=').append(blobKey).append('\n');
+        }
+        if (orientation != ExifThumbnailReader.ORIENTATION_UNDEFINED) {
+            sb.append(ORIENTATION).append('=').append(orientation).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageMetadata[" + width + "x" + height + ", " + mimeType + ", opaque=" + opaque + "]";
+    }
+}
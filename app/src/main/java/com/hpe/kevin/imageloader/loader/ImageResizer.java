@@ -3,16 +3,27 @@ package com.hpe.kevin.imageloader.loader;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
 import android.util.Log;
 
 import java.io.FileDescriptor;
 
 public class ImageResizer {
     private static final String TAG = "ImageResizer";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+    // Largest relative aspect ratio difference accepted between the EXIF thumbnail and the image
+    private static final float MAX_THUMBNAIL_RATIO_DIFF = 0.02f;
+
+    private DecodeGovernor mDecodeGovernor;
 
     public ImageResizer() {
     }
 
+    public ImageResizer(DecodeGovernor decodeGovernor) {
+        mDecodeGovernor = decodeGovernor;
+    }
+
     public Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight) {
         // First decode with inJustDecodeBounds=true to check dimensions
         BitmapFactory.Options options = new BitmapFactory.Options();
@@ -23,7 +34,16 @@ public class ImageResizer {
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+        // Wait until the decoded bitmap fits into the in-flight decode budget
+        long decodeBytes = acquireDecodeBytes(options);
+        if (decodeBytes < 0) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeResource(res, resId, options);
+        } finally {
+            releaseDecodeBytes(decodeBytes);
+        }
     }
 
     public Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fd, int reqWidth, int reqHeight) {
@@ -36,7 +56,161 @@ public class ImageResizer {
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        // Wait until the decoded bitmap fits into the in-flight decode budget
+        long decodeBytes = acquireDecodeBytes(options);
+        if (decodeBytes < 0) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } finally {
+            releaseDecodeBytes(decodeBytes);
+        }
+    }
+
+    public Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length,
+                                                   int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromByteArray(data, offset, length, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Decodes a sampled bitmap from encoded bytes. When {@code metadata} is known the bounds
+     * pass is skipped and the recorded dimensions are used to compute inSampleSize.
+     */
+    public Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length,
+                                                   int reqWidth, int reqHeight, ImageMetadata metadata) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        String mimeType;
+        if (metadata != null) {
+            // The metadata holds the display size, inSampleSize works on the encoded pixels
+            options.outWidth = metadata.encodedWidth();
+            options.outHeight = metadata.encodedHeight();
+            mimeType = metadata.mimeType;
+        } else {
+            // First decode with inJustDecodeBounds=true to check dimensions
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, offset, length, options);
+            mimeType = options.outMimeType;
+        }
+
+        // Camera JPEGs carry an EXIF orientation and often a small embedded thumbnail
+        ExifThumbnailReader.ExifInfo exif = null;
+        if (MIME_TYPE_JPEG.equals(mimeType)) {
+            exif = ExifThumbnailReader.read(data, offset, length);
+        }
+        int orientation = exif != null ? exif.orientation : ExifThumbnailReader.ORIENTATION_NORMAL;
+        // The requested size is in display orientation, the encoded pixels may be rotated by 90 degrees
+        boolean transposed = ExifThumbnailReader.isTransposed(orientation);
+        int targetWidth = transposed ? reqHeight : reqWidth;
+        int targetHeight = transposed ? reqWidth : reqHeight;
+
+        if (exif != null && exif.hasThumbnail() && targetWidth > 0 && targetHeight > 0) {
+            Bitmap thumbnail = decodeExifThumbnail(data, exif, options.outWidth, options.outHeight,
+                    targetWidth, targetHeight);
+            if (thumbnail != null) {
+                return applyOrientation(thumbnail, orientation);
+            }
+        }
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, targetWidth, targetHeight);
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        // Wait until the decoded bitmap fits into the in-flight decode budget
+        long decodeBytes = acquireDecodeBytes(options);
+        if (decodeBytes < 0) {
+            return null;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } finally {
+            releaseDecodeBytes(decodeBytes);
+        }
+        return applyOrientation(bitmap, orientation);
+    }
+
+    /**
+     * Decodes the EXIF thumbnail if it is at least as large as the target and has the same
+     * aspect ratio as the main image, otherwise returns null and the main image is decoded.
+     */
+    private Bitmap decodeExifThumbnail(byte[] data, ExifThumbnailReader.ExifInfo exif,
+                                       int imageWidth, int imageHeight, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, exif.thumbnailOffset, exif.thumbnailLength, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width < targetWidth || height < targetHeight || imageWidth <= 0 || imageHeight <= 0) {
+            return null;
+        }
+        // Some cameras letterbox the thumbnail into a fixed 4:3 frame, don't show the black bars
+        float ratio = (float) width / height;
+        float imageRatio = (float) imageWidth / imageHeight;
+        if (Math.abs(ratio - imageRatio) > imageRatio * MAX_THUMBNAIL_RATIO_DIFF) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options, targetWidth, targetHeight);
+        options.inJustDecodeBounds = false;
+        long decodeBytes = acquireDecodeBytes(options);
+        if (decodeBytes < 0) {
+            return null;
+        }
+        try {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, exif.thumbnailOffset,
+                    exif.thumbnailLength, options);
+            if (DEBUG && bitmap != null) {
+                Log.d(TAG, "decoded exif thumbnail " + width + "x" + height
+                        + " instead of " + imageWidth + "x" + imageHeight);
+            }
+            return bitmap;
+        } finally {
+            releaseDecodeBytes(decodeBytes);
+        }
+    }
+
+    /**
+     * Rotates or mirrors the decoded bitmap according to the EXIF orientation.
+     */
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        if (bitmap == null || orientation <= ExifThumbnailReader.ORIENTATION_NORMAL
+                || orientation > ExifThumbnailReader.ORIENTATION_ROTATE_270) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifThumbnailReader.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifThumbnailReader.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifThumbnailReader.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifThumbnailReader.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifThumbnailReader.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifThumbnailReader.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifThumbnailReader.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (oriented != bitmap) {
+            bitmap.recycle();
+        }
+        return oriented;
     }
 
     public int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
@@ -48,7 +222,9 @@ public class ImageResizer {
         final int height = options.outHeight;
         final int width = options.outWidth;
 
-        Log.d(TAG, "origin, w=" + width + " h=" + height);
+        if (DEBUG) {
+            Log.d(TAG, "origin, w=" + width + " h=" + height);
+        }
         int inSampleSize = 1;
 
         if (height > reqHeight || width > reqWidth) {
@@ -61,7 +237,31 @@ public class ImageResizer {
             }
         }
 
-        Log.d(TAG, "sampleSize:" + inSampleSize);
+        if (DEBUG) {
+            Log.d(TAG, "sampleSize:" + inSampleSize);
+        }
         return inSampleSize;
     }
+
+    private long acquireDecodeBytes(BitmapFactory.Options options) {
+        if (mDecodeGovernor == null) {
+            return 0;
+        }
+        long bytes = DecodeGovernor.estimateBytes(options.outWidth, options.outHeight,
+                options.inSampleSize, options.inPreferredConfig);
+        try {
+            mDecodeGovernor.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "interrupted while waiting for decode budget");
+            return -1;
+        }
+        return bytes;
+    }
+
+    private void releaseDecodeBytes(long bytes) {
+        if (mDecodeGovernor != null) {
+            mDecodeGovernor.release(bytes);
+        }
+    }
 }
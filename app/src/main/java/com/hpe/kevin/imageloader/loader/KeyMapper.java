@@ -0,0 +1,14 @@
+package com.hpe.kevin.imageloader.loader;
+
+/**
+ * 把URL映射为生成缓存key之前的字符串。
+ * 内容相同的URL映射为同一个字符串时，它们共用内存缓存和磁盘缓存中的同一个entry。
+ * 实现必须是线程安全的，并且对同一个URL总是返回相同的结果。
+ */
+public interface KeyMapper {
+    /**
+     * @param url
+     * @return 用来生成缓存key的字符串
+     */
+    String map(String url);
+}
@@ -0,0 +1,184 @@
+package com.hpe.kevin.imageloader.loader;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 根据命中率反馈动态调整内存缓存的大小。
+ *
+ * <p>初始大小由{@link ActivityManager#getMemoryClass()}和{@link ActivityManager#isLowRamDevice()}决定，
+ * 运行中定期统计命中率、淘汰率和GC次数：
+ * <ul>
+ * <li>淘汰频繁，并且上一次扩容确实提高了命中率，就继续扩容；</li>
+ * <li>扩容后命中率没有提高，或者GC变得频繁，就缩容；</li>
+ * </ul>
+ * 大小始终限制在最小值和最大值之间。缓存的大小单位是KB。
+ */
+public class MemoryCacheTuner {
+    private static final String TAG = "MemoryCacheTuner";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // 两次调整之间的最短间隔
+    private static final long ADJUST_INTERVAL_MS = 10 * 1000L;
+    // 一个统计窗口内至少需要的访问次数
+    private static final int MIN_SAMPLE_ACCESSES = 50;
+    // 淘汰数/访问数超过这个比例时认为缓存偏小
+    private static final float EVICTION_RATE_THRESHOLD = 0.05f;
+    // 命中率至少提高这么多才认为扩容有效
+    private static final float MIN_HIT_RATE_GAIN = 0.01f;
+    // 每秒GC次数超过这个值时认为内存紧张
+    private static final float GC_RATE_THRESHOLD = 1.0f;
+    // 每次调整的幅度为当前大小的1/10
+    private static final int STEP_DIVISOR = 10;
+
+    private static final int HOLD = 0;
+    private static final int GROW = 1;
+    private static final int SHRINK = -1;
+
+    private final TinyLfuCache<?, ?> mCache;
+    private final int mMinSize;
+    private final int mMaxSize;
+
+    private long mLastAdjustTime;
+    private int mLastHitCount;
+    private int mLastMissCount;
+    private int mLastEvictionCount;
+    private long mLastGcCount;
+    private float mLastHitRate = -1;
+    private int mLastAction = HOLD;
+
+    /**
+     * @param cache 要调整的缓存
+     * @param minSize 最小大小(KB)
+     * @param maxSize 最大大小(KB)
+     */
+    public MemoryCacheTuner(TinyLfuCache<?, ?> cache, int minSize, int maxSize) {
+        mCache = cache;
+        mMinSize = minSize;
+        mMaxSize = Math.max(minSize, maxSize);
+        mLastAdjustTime = SystemClock.uptimeMillis();
+        mLastHitCount = cache.hitCount();
+        mLastMissCount = cache.missCount();
+        mLastEvictionCount = cache.evictionCount();
+        mLastGcCount = getGcCount();
+    }
+
+    /**
+     * 根据设备的内存等级计算缓存的初始大小(KB)：普通设备为memoryClass的1/8，低内存设备为1/16
+     * @param context
+     * @return
+     */
+    public static int getInitialCacheSize(Context context) {
+        return getMemoryClassKb(context) / (isLowRamDevice(context) ? 16 : 8);
+    }
+
+    /** 缓存的最小大小(KB)：普通设备为memoryClass的1/16，低内存设备为1/32 */
+    public static int getMinCacheSize(Context context) {
+        return getMemoryClassKb(context) / (isLowRamDevice(context) ? 32 : 16);
+    }
+
+    /** 缓存的最大大小(KB)：普通设备为memoryClass的1/4，低内存设备为1/8 */
+    public static int getMaxCacheSize(Context context) {
+        return getMemoryClassKb(context) / (isLowRamDevice(context) ? 8 : 4);
+    }
+
+    /**
+     * 每次请求时调用。距离上次调整超过一定时间、并且样本足够时才会真正调整。
+     */
+    public synchronized void onRequest() {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastAdjustTime;
+        if (elapsed < ADJUST_INTERVAL_MS) {
+            return;
+        }
+
+        int hitCount = mCache.hitCount();
+        int missCount = mCache.missCount();
+        int hits = hitCount - mLastHitCount;
+        int accesses = hits + (missCount - mLastMissCount);
+        if (accesses < MIN_SAMPLE_ACCESSES) {
+            return;
+        }
+        int evictionCount = mCache.evictionCount();
+        long gcCount = getGcCount();
+
+        float hitRate = (float) hits / accesses;
+        float evictionRate = (float) (evictionCount - mLastEvictionCount) / accesses;
+        float gcRate = mLastGcCount >= 0 && gcCount >= 0
+                ? (gcCount - mLastGcCount) * 1000f / elapsed : 0f;
+
+        int action = decide(hitRate, evictionRate, gcRate);
+        int currentSize = mCache.maxSize();
+        int step = Math.max(1, currentSize / STEP_DIVISOR);
+        int newSize = currentSize;
+        if (action == GROW) {
+            newSize = Math.min(mMaxSize, currentSize + step);
+        } else if (action == SHRINK) {
+            newSize = Math.max(mMinSize, currentSize - step);
+        }
+        if (newSize != currentSize) {
+            if (DEBUG) {
+                Log.d(TAG, "resize memory cache " + currentSize + "KB -> " + newSize + "KB, hitRate="
+                        + hitRate + " evictionRate=" + evictionRate + " gcRate=" + gcRate);
+            }
+            mCache.resize(newSize);
+        } else {
+            action = HOLD;
+        }
+
+        mLastAdjustTime = now;
+        mLastHitCount = hitCount;
+        mLastMissCount = missCount;
+        mLastEvictionCount = evictionCount;
+        mLastGcCount = gcCount;
+        mLastHitRate = hitRate;
+        mLastAction = action;
+    }
+
+    private int decide(float hitRate, float evictionRate, float gcRate) {
+        // GC频繁时优先缩容，把内存还给应用的其他部分
+        if (gcRate > GC_RATE_THRESHOLD) {
+            return SHRINK;
+        }
+        boolean improved = mLastHitRate < 0 || hitRate - mLastHitRate >= MIN_HIT_RATE_GAIN;
+        if (mLastAction == GROW && !improved) {
+            // 上一次扩容没有带来收益，退回去
+            return SHRINK;
+        }
+        if (evictionRate > EVICTION_RATE_THRESHOLD && (mLastAction != GROW || improved)) {
+            return GROW;
+        }
+        return HOLD;
+    }
+
+    private static int getMemoryClassKb(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return (int) (Runtime.getRuntime().maxMemory() / 1024 / 1024) * 1024;
+        }
+        return am.getMemoryClass() * 1024;
+    }
+
+    private static boolean isLowRamDevice(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am != null && am.isLowRamDevice();
+    }
+
+    /**
+     * 取得ART运行时累计的GC次数，取不到时返回-1
+     */
+    private static long getGcCount() {
+        String count = Debug.getRuntimeStat("art.gc.gc-count");
+        if (count == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(count);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.hpe.kevin.imageloader.loader;
+
+import android.graphics.Bitmap;
+
+/**
+ * 低质量占位图(LQIP)的编解码。
+ * 占位图最长边为{@link #MAX_SIZE}像素，格式为：1字节宽、1字节高，然后是每个像素2字节的RGB565。
+ * 16x16的占位图只有514字节，可以直接放在磁盘缓存的元数据里，并常驻内存。
+ */
+public class PlaceholderCodec {
+    public static final int MAX_SIZE = 16;
+
+    private PlaceholderCodec() {
+    }
+
+    /**
+     * 把bitmap缩小并编码成占位图
+     * @param bitmap
+     * @return
+     */
+    public static byte[] encode(Bitmap bitmap) {
+        int srcWidth = bitmap.getWidth();
+        int srcHeight = bitmap.getHeight();
+        if (srcWidth <= 0 || srcHeight <= 0) {
+            return null;
+        }
+        // 保持宽高比，最长边缩小到MAX_SIZE
+        int width;
+        int height;
+        if (srcWidth >= srcHeight) {
+            width = Math.min(MAX_SIZE, srcWidth);
+            height = Math.max(1, Math.round((float) srcHeight * width / srcWidth));
+        } else {
+            height = Math.min(MAX_SIZE, srcHeight);
+            width = Math.max(1, Math.round((float) srcWidth * height / srcHeight));
+        }
+        Bitmap scaled = bitmap;
+        if (width != srcWidth || height != srcHeight) {
+            scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        }
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        byte[] data = new byte[2 + pixels.length * 2];
+        data[0] = (byte) width;
+        data[1] = (byte) height;
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            int rgb565 = ((color >> 8) & 0xF800) | ((color >> 5) & 0x07E0) | ((color >> 3) & 0x001F);
+            data[2 + i * 2] = (byte) (rgb565 >> 8);
+            data[3 + i * 2] = (byte) rgb565;
+        }
+        return data;
+    }
+
+    /**
+     * 把占位图解码成bitmap
+     * @param data
+     * @return 数据不正确时返回null
+     */
+    public static Bitmap decode(byte[] data) {
+        if (data == null || data.length < 2) {
+            return null;
+        }
+        int width = data[0] & 0xFF;
+        int height = data[1] & 0xFF;
+        if (width == 0 || height == 0 || data.length != 2 + width * height * 2) {
+            return null;
+        }
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb565 = ((data[2 + i * 2] & 0xFF) << 8) | (data[3 + i * 2] & 0xFF);
+            int r = (rgb565 >> 11) & 0x1F;
+            int g = (rgb565 >> 5) & 0x3F;
+            int b = rgb565 & 0x1F;
+            pixels[i] = 0xFF000000
+                    | ((r << 3 | r >> 2) << 16)
+                    | ((g << 2 | g >> 4) << 8)
+                    | (b << 3 | b >> 2);
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.RGB_565);
+    }
+}
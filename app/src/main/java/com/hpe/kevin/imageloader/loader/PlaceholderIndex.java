@@ -0,0 +1,146 @@
+package com.hpe.kevin.imageloader.loader;
+
+import com.hpe.kevin.imageloader.utils.MyUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 最近用到的低质量占位图的索引，并保存到文件中。
+ * 占位图本来只在磁盘缓存的元数据里，进程重新启动后要读磁盘才能拿到；启动时先读取这个文件，
+ * 绑定图片时就可以在UI线程中直接找到占位图。
+ * 文件格式为魔数、版本、个数，然后每个占位图是key和{@link PlaceholderCodec}编码的数据，最久未使用的在前面。
+ */
+public class PlaceholderIndex {
+    private static final String MAGIC = "imageloader.placeholders";
+    private static final int VERSION = 1;
+    // 编码后的占位图最大为2 + 16 * 16 * 2字节
+    private static final int MAX_PLACEHOLDER_LENGTH = 2 + PlaceholderCodec.MAX_SIZE * PlaceholderCodec.MAX_SIZE * 2;
+
+    // accessOrder为true，最近使用的在尾部
+    private final LinkedHashMap<String, byte[]> mPlaceholders;
+
+    /**
+     * @param maxEntries 最多保存的占位图个数
+     */
+    public PlaceholderIndex(final int maxEntries) {
+        mPlaceholders = new LinkedHashMap<String, byte[]>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 记录key的占位图
+     * @param key
+     * @param placeholder {@link PlaceholderCodec}编码的数据
+     */
+    public void put(String key, byte[] placeholder) {
+        synchronized (mPlaceholders) {
+            mPlaceholders.put(key, placeholder);
+        }
+    }
+
+    /**
+     * 返回key的占位图，没有时返回null。不读磁盘，可以在UI线程中调用
+     * @param key
+     * @return
+     */
+    public byte[] get(String key) {
+        synchronized (mPlaceholders) {
+            return mPlaceholders.get(key);
+        }
+    }
+
+    /**
+     * 把索引写入文件，先写临时文件再改名，写到一半时进程被杀也不会留下不完整的文件
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        List<String> keys;
+        List<byte[]> placeholders;
+        synchronized (mPlaceholders) {
+            keys = new ArrayList<String>(mPlaceholders.keySet());
+            placeholders = new ArrayList<byte[]>(mPlaceholders.values());
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeUTF(keys.get(i));
+                out.writeShort(placeholders.get(i).length);
+                out.write(placeholders.get(i));
+            }
+        } finally {
+            MyUtils.close(out);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp);
+        }
+    }
+
+    /**
+     * 读取{@link #save(File)}保存的索引。已经记录的占位图比文件中的新，不会被覆盖。
+     * 文件不存在或者格式不正确时什么也不做
+     * @param file
+     */
+    public void load(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>();
+        List<byte[]> placeholders = new ArrayList<byte[]>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int length = in.readUnsignedShort();
+                if (length > MAX_PLACEHOLDER_LENGTH) {
+                    return;
+                }
+                byte[] placeholder = new byte[length];
+                in.readFully(placeholder);
+                keys.add(key);
+                placeholders.add(placeholder);
+            }
+        } catch (IOException e) {
+            // 文件不完整时整个丢弃
+            return;
+        } finally {
+            MyUtils.close(in);
+        }
+        synchronized (mPlaceholders) {
+            // 文件中的排在已经记录的前面，按最久未使用到最近使用的顺序插入
+            Map<String, byte[]> recorded = new LinkedHashMap<String, byte[]>(mPlaceholders);
+            mPlaceholders.clear();
+            for (int i = 0; i < keys.size(); i++) {
+                if (!recorded.containsKey(keys.get(i))) {
+                    mPlaceholders.put(keys.get(i), placeholders.get(i));
+                }
+            }
+            mPlaceholders.putAll(recorded);
+        }
+    }
+}
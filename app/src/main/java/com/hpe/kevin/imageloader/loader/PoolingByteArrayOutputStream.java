@@ -0,0 +1,60 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 从{@link ByteArrayPool}取得缓冲区的ByteArrayOutputStream。
+ * 和ByteArrayOutputStream一样close()没有效果，数据用完后调用{@link #recycle()}把缓冲区还给池。
+ */
+public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+    private static final int DEFAULT_SIZE = 64 * 1024;
+
+    private final ByteArrayPool mPool;
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool) {
+        this(pool, DEFAULT_SIZE);
+    }
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool, int size) {
+        mPool = pool;
+        buf = mPool.get(Math.max(size, 256));
+    }
+
+    /**
+     * 返回内部缓冲区，有效数据为[0, size())
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * 把缓冲区还给池，之后不能再使用这个对象
+     */
+    public void recycle() {
+        mPool.put(buf);
+        buf = new byte[0];
+        count = 0;
+    }
+
+    private void expand(int i) {
+        if (count + i <= buf.length) {
+            return;
+        }
+        byte[] newBuf = mPool.get(Math.max((count + i), buf.length * 2));
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        mPool.put(buf);
+        buf = newBuf;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int len) {
+        expand(len);
+        super.write(buffer, offset, len);
+    }
+
+    @Override
+    public synchronized void write(int oneByte) {
+        expand(1);
+        super.write(oneByte);
+    }
+}
@@ -0,0 +1,448 @@
+package com.hpe.kevin.imageloader.loader;
+
+import android.util.Log;
+
+import com.hpe.kevin.imageloader.utils.MyUtils;
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 两级磁盘缓存：内部存储上一个小的热点层，外部存储上一个大的冷数据层。
+ * <ul>
+ * <li>新的key写入冷数据层，已经在热点层中的key在热点层中修改；</li>
+ * <li>冷数据层中的entry被读取{@link #PROMOTE_READ_COUNT}次后，在后台复制到热点层；</li>
+ * <li>热点层因为容量被淘汰的entry不直接删除，而是降级回冷数据层。</li>
+ * </ul>
+ * 提升和降级时持有冷数据层中这个key的editor，移动期间同一个key的{@link #edit}和{@link #remove}会等待移动完成，
+ * 移动开始前已经在冷数据层中修改的key不会被移动；热点层淘汰一个key之后、降级之前，这个key的新数据可能已经
+ * 写入冷数据层，这时放弃降级。所以移动不会覆盖或者丢失修改。
+ * 外部存储不可用(或者和内部存储是同一个目录)时只有一层，所有操作都在冷数据层上进行。
+ * 两层的大小由{@link DiskCacheSizer}根据各自存储的剩余空间决定，热点层不超过冷数据层的1/{@link #HOT_TIER_DIVISOR}。
+ */
+public class TieredDiskCache implements Closeable {
+    private static final String TAG = "TieredDiskCache";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // 从冷数据层读取几次后提升到热点层
+    private static final int PROMOTE_READ_COUNT = 2;
+    // 最多记录多少个key的读取次数
+    private static final int MAX_TRACKED_READS = 512;
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    // 热点层最大为冷数据层的1/5
+    private static final int HOT_TIER_DIVISOR = 5;
+
+    private final DiskLruCache mHotCache;
+    private final DiskLruCache mColdCache;
+    private final int mValueCount;
+    private final Executor mExecutor;
+    // 冷数据层中各个key被读取的次数
+    private final LinkedHashMap<String, Integer> mReadCounts =
+            new LinkedHashMap<String, Integer>(0, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_TRACKED_READS;
+                }
+            };
+    // 等待提升的key
+    private final Set<String> mPendingPromotions = Collections.synchronizedSet(new HashSet<String>());
+    // 正在两层之间移动的key，由自己同步。包可见，测试中持有它的锁来推迟降级
+    final Set<String> mMovingKeys = new HashSet<String>();
+    // 没有完成的降级次数
+    private final AtomicInteger mDroppedDemotions = new AtomicInteger();
+
+    private TieredDiskCache(DiskLruCache hotCache, DiskLruCache coldCache, int valueCount, Executor executor) {
+        mHotCache = hotCache;
+        mColdCache = coldCache;
+        mValueCount = valueCount;
+        mExecutor = executor;
+        if (mHotCache != null) {
+            mHotCache.setEvictionListener(new DiskLruCache.EvictionListener() {
+                @Override
+                public boolean canEvict(String key, File[] files) {
+                    // 降级后数据仍然在冷数据层中，不需要阻止
+                    return true;
+                }
+
+                @Override
+                public void onEntryEvicted(String key, File[] files) {
+                    demote(key, files);
+                }
+            });
+        }
+    }
+
+    /**
+     * 打开两级磁盘缓存。冷数据层在后台读取日志，这个方法很快返回，读取完成前访问冷数据层的操作会等待；
+     * 热点层很小，直接打开，读取完成前热点层的命中不需要等待冷数据层。
+     * @param hotDirectory 热点层的目录，为null时只有一层
+     * @param coldDirectory 冷数据层的目录
+     * @param sizer 计算两层的大小
+     * @param appVersion
+     * @param valueCount
+     * @param binaryJournal 两层是否使用二进制格式的日志，已有的文本日志在打开时自动转换
+     * @param executor 执行提升操作的线程池
+     * @return
+     * @throws IOException 热点层打开失败时不抛出，只使用冷数据层；冷数据层在后台打开失败时，之后的读写操作抛出IOException
+     */
+    public static TieredDiskCache open(File hotDirectory, File coldDirectory, final DiskCacheSizer sizer,
+                                       int appVersion, int valueCount, boolean binaryJournal,
+                                       Executor executor) throws IOException {
+        long coldMaxSize = sizer.computeMaxSize(coldDirectory, 0);
+        DiskLruCache coldCache = DiskLruCache.openLazily(coldDirectory, appVersion, valueCount, coldMaxSize,
+                binaryJournal);
+        DiskLruCache hotCache = null;
+        if (hotDirectory != null && !hotDirectory.equals(coldDirectory)) {
+            try {
+                hotCache = DiskLruCache.open(hotDirectory, appVersion, valueCount,
+                        computeHotMaxSize(sizer, hotDirectory, 0, coldMaxSize), binaryJournal);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to open hot tier in " + hotDirectory + ": " + e);
+            }
+        }
+        final TieredDiskCache cache = new TieredDiskCache(hotCache, coldCache, valueCount, executor);
+        // 打开时还不知道缓存已经占用的空间，冷数据层读取完成后按当前大小重新计算一次
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!cache.isClosed()) {
+                    cache.updateMaxSize(sizer);
+                }
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * 根据存储当前的剩余空间重新计算两层的大小，缩小时在后台删除多余的entry。
+     * 需要访问文件系统，不要在UI线程中调用。
+     * @param sizer
+     */
+    public void updateMaxSize(DiskCacheSizer sizer) {
+        long coldMaxSize = sizer.computeMaxSize(mColdCache.getDirectory(), mColdCache.size());
+        if (mColdCache.getMaxSize() != coldMaxSize) {
+            if (DEBUG) {
+                Log.d(TAG, "cold tier max size " + mColdCache.getMaxSize() + " -> " + coldMaxSize);
+            }
+            mColdCache.setMaxSize(coldMaxSize);
+        }
+        if (mHotCache != null) {
+            long hotMaxSize = computeHotMaxSize(sizer, mHotCache.getDirectory(), mHotCache.size(), coldMaxSize);
+            if (mHotCache.getMaxSize() != hotMaxSize) {
+                mHotCache.setMaxSize(hotMaxSize);
+            }
+        }
+    }
+
+    private static long computeHotMaxSize(DiskCacheSizer sizer, File directory, long currentSize,
+                                          long coldMaxSize) {
+        return Math.max(1, Math.min(coldMaxSize / HOT_TIER_DIVISOR, sizer.computeMaxSize(directory, currentSize)));
+    }
+
+    /**
+     * 先查热点层，再查冷数据层。冷数据层中反复读取的entry会在后台提升到热点层。
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        if (mHotCache != null) {
+            DiskLruCache.Snapshot snapshot = mHotCache.get(key);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        DiskLruCache.Snapshot snapshot = mColdCache.get(key);
+        if (snapshot != null && mHotCache != null && shouldPromote(key)) {
+            promoteAsync(key);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 读取entry的一个value，不算作访问：不改变LRU顺序，不写READ记录，也不计入提升的读取次数。
+     * 可以在冷数据层的{@link DiskLruCache.EvictionListener#canEvict}中调用。
+     * @param key
+     * @param index
+     * @return 两层中都没有时返回null
+     * @throws IOException
+     */
+    public String peekString(String key, int index) throws IOException {
+        if (mHotCache != null) {
+            String value = mHotCache.peekString(key, index);
+            if (value != null) {
+                return value;
+            }
+        }
+        return mColdCache.peekString(key, index);
+    }
+
+    /**
+     * 在entry所在的层中修改，新的key写入冷数据层。这个key正在两层之间移动时等待移动完成
+     * @param key
+     * @return 另一个修改正在进行时返回null
+     * @throws IOException
+     */
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        synchronized (mMovingKeys) {
+            awaitNotMoving(key);
+            if (mHotCache != null && mHotCache.contains(key)) {
+                return mHotCache.edit(key);
+            }
+            return mColdCache.edit(key);
+        }
+    }
+
+    /**
+     * 设置冷数据层的淘汰监听。热点层淘汰的entry会降级到冷数据层，不会通知这个监听。
+     * @param listener
+     */
+    public void setEvictionListener(DiskLruCache.EvictionListener listener) {
+        mColdCache.setEvictionListener(listener);
+    }
+
+    public boolean remove(String key) throws IOException {
+        synchronized (mMovingKeys) {
+            awaitNotMoving(key);
+            boolean removed = mHotCache != null && mHotCache.remove(key);
+            return mColdCache.remove(key) || removed;
+        }
+    }
+
+    /**
+     * 热点层淘汰的entry因为冷数据层正在修改同一个key、文件缺失或者IO错误没有降级的次数
+     */
+    public int getDroppedDemotionCount() {
+        return mDroppedDemotions.get();
+    }
+
+    public void flush() throws IOException {
+        if (mHotCache != null) {
+            mHotCache.flush();
+        }
+        mColdCache.flush();
+    }
+
+    /** 冷数据层的目录 */
+    public File getDirectory() {
+        return mColdCache.getDirectory();
+    }
+
+    /** 两层一共可以使用的字节数 */
+    public long getMaxSize() {
+        return (mHotCache != null ? mHotCache.getMaxSize() : 0) + mColdCache.getMaxSize();
+    }
+
+    /** 两层一共使用的字节数 */
+    public long size() {
+        return (mHotCache != null ? mHotCache.size() : 0) + mColdCache.size();
+    }
+
+    public boolean isClosed() {
+        return mColdCache.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mHotCache != null) {
+            mHotCache.close();
+        }
+        mColdCache.close();
+    }
+
+    private boolean shouldPromote(String key) {
+        synchronized (mReadCounts) {
+            Integer count = mReadCounts.get(key);
+            int reads = count == null ? 1 : count + 1;
+            if (reads >= PROMOTE_READ_COUNT) {
+                mReadCounts.remove(key);
+                return true;
+            }
+            mReadCounts.put(key, reads);
+            return false;
+        }
+    }
+
+    private void promoteAsync(final String key) {
+        if (!mPendingPromotions.add(key)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promote(key);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error in promote: " + e);
+                } finally {
+                    mPendingPromotions.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * 开始在两层之间移动key：取得冷数据层中这个key的editor，阻止移动期间冷数据层中的修改
+     * @return 冷数据层正在修改这个key时返回null
+     */
+    private DiskLruCache.Editor beginMove(String key) throws IOException {
+        synchronized (mMovingKeys) {
+            awaitNotMoving(key);
+            DiskLruCache.Editor editor = mColdCache.edit(key);
+            if (editor != null) {
+                mMovingKeys.add(key);
+            }
+            return editor;
+        }
+    }
+
+    private void endMove(String key) {
+        synchronized (mMovingKeys) {
+            mMovingKeys.remove(key);
+            mMovingKeys.notifyAll();
+        }
+    }
+
+    /**
+     * 等待key的移动完成，需要持有mMovingKeys的锁
+     */
+    private void awaitNotMoving(String key) throws IOException {
+        while (mMovingKeys.contains(key)) {
+            try {
+                mMovingKeys.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * 把冷数据层中的entry复制到热点层，成功后从冷数据层删除
+     */
+    private void promote(String key) throws IOException {
+        DiskLruCache.Editor coldEditor = beginMove(key);
+        if (coldEditor == null) {
+            // 正在修改，修改后的数据留在冷数据层
+            return;
+        }
+        try {
+            boolean copied;
+            try {
+                copied = copyToHotTier(key);
+            } finally {
+                coldEditor.abortUnlessCommitted();
+            }
+            if (copied) {
+                mColdCache.remove(key);
+                if (DEBUG) {
+                    Log.d(TAG, "promoted " + key);
+                }
+            }
+        } finally {
+            endMove(key);
+        }
+    }
+
+    /**
+     * @return 热点层中是否已经有了完整的entry
+     */
+    private boolean copyToHotTier(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = mColdCache.get(key);
+        if (snapshot == null) {
+            return false;
+        }
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mHotCache.edit(key);
+            if (editor == null) {
+                return false;
+            }
+            for (int i = 0; i < mValueCount; i++) {
+                copy(snapshot.getInputStream(i), editor.newOutputStream(i));
+            }
+            editor.commit();
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+            snapshot.close();
+        }
+        // 写入出错时commit不抛出异常，但热点层中不会有这个entry
+        return mHotCache.contains(key);
+    }
+
+    /**
+     * 热点层淘汰的entry降级到冷数据层，在热点层的后台线程中调用
+     */
+    private void demote(String key, File[] files) {
+        if (mColdCache.isClosed()) {
+            return;
+        }
+        for (int i = 0; i < mValueCount; i++) {
+            if (!files[i].exists()) {
+                dropDemotion(key, "missing value " + i);
+                return;
+            }
+        }
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = beginMove(key);
+            if (editor == null) {
+                // 冷数据层正在写入同一个key，新数据更准确
+                dropDemotion(key, "being edited in the cold tier");
+                return;
+            }
+            if (mColdCache.contains(key)) {
+                // 淘汰之后冷数据层中又提交了这个key(重新下载或者登记了新的引用者)，旧数据不能覆盖它
+                dropDemotion(key, "newer entry in the cold tier");
+                return;
+            }
+            for (int i = 0; i < mValueCount; i++) {
+                copy(new FileInputStream(files[i]), editor.newOutputStream(i));
+            }
+            editor.commit();
+            if (DEBUG) {
+                Log.d(TAG, "demoted " + key);
+            }
+        } catch (IOException e) {
+            dropDemotion(key, e.toString());
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+                endMove(key);
+            }
+        }
+    }
+
+    private void dropDemotion(String key, String reason) {
+        mDroppedDemotions.incrementAndGet();
+        Log.w(TAG, "dropped demotion of " + key + ": " + reason);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            MyUtils.close(out);
+            MyUtils.close(in);
+        }
+    }
+}
@@ -0,0 +1,815 @@
+package com.hpe.kevin.imageloader.loader;
+
+import java.util.HashMap;
+
+/**
+ * 分段加锁、带频率准入(W-TinyLFU)的内存缓存，接口与{@link android.util.LruCache}保持一致。
+ *
+ * <p>缓存按key的hash分成若干段，每段有独立的锁，UI线程和工作线程访问不同段时互不阻塞。
+ * 每段内部分为三个区：
+ * <ul>
+ * <li>window：新加入的entry先进入这个小的LRU区；</li>
+ * <li>probation：从window淘汰出来的entry在这里等待考察；</li>
+ * <li>protected：在probation中再次被访问的entry会晋升到这里。</li>
+ * </ul>
+ * 空间不足时，用频率草图(count-min sketch)比较候选者和probation中最久未使用的entry的访问频率，
+ * 只保留频率高的一方。这样一次快速滑动带来的大量冷数据不会把热点数据挤出缓存。
+ *
+ * <p>每次{@link #get}记录一次访问(命中和未命中都计入频率)，{@link #put}和{@link #peek}不记录，
+ * 所以调用者对一次逻辑上的请求只应该调用一次get，内部的重复检查用peek。
+ *
+ * <p>每段的容量是maxSize除以段数。大于这个值的entry(比如全屏的大图)不分段，放在一个共享的LRU区中，
+ * 占用的容量从各段中平均扣除，所以总大小仍然不超过maxSize。这个区最多占用maxSize的{@link #LARGE_PERCENT}%，
+ * 更大的entry不会被缓存。
+ *
+ * <p>get命中时不分配任何对象。
+ */
+public class TinyLfuCache<K, V> {
+    private static final int DEFAULT_CONCURRENCY = 4;
+    private static final int DEFAULT_EXPECTED_ENTRIES = 512;
+
+    // window区占每段容量的百分比
+    private static final int WINDOW_PERCENT = 10;
+    // protected区占main区(probation + protected)容量的百分比
+    private static final int PROTECTED_PERCENT = 80;
+    // 大于每段容量的entry最多占用总容量的百分比
+    private static final int LARGE_PERCENT = 50;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Segment[] mSegments;
+    private final int mSegmentMask;
+    private int mMaxSize;
+    // 不扣除大entry时每段的容量，大于它的entry放到mLarge中
+    private volatile int mSegmentCapacity;
+    // 大于每段容量的entry，按LRU淘汰，由mLargeData同步
+    private final HashMap<K, Node> mLargeData = new HashMap<K, Node>();
+    private final AccessQueue mLarge = new AccessQueue();
+    private int mLargeMaxSize;
+    private int mLargeHitCount;
+    private int mLargePutCount;
+    private int mLargeEvictionCount;
+    // mLargeData不为空，为false时get和remove不用再检查大entry
+    private volatile boolean mHasLarge;
+
+    /**
+     * @param maxSize 最大容量，单位由{@link #sizeOf}决定
+     */
+    public TinyLfuCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY, DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param maxSize 最大容量，单位由{@link #sizeOf}决定
+     * @param concurrency 分段数，会向上取整为2的幂
+     * @param expectedEntries 预计的entry数量，用来确定频率草图的大小
+     */
+    @SuppressWarnings("unchecked")
+    public TinyLfuCache(int maxSize, int concurrency, int expectedEntries) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        int segmentCount = ceilingPowerOfTwo(Math.max(1, concurrency));
+        mSegmentMask = segmentCount - 1;
+        mSegments = new TinyLfuCache.Segment[segmentCount];
+        int sketchEntries = Math.max(1, expectedEntries / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment(sketchEntries);
+        }
+        setSegmentMaxSize(maxSize);
+    }
+
+    /**
+     * 返回key对应的value，不存在时返回null。命中时会更新该entry的访问顺序和访问频率。
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        if (mHasLarge) {
+            V value = getLarge(key, true);
+            if (value != null) {
+                return value;
+            }
+        }
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * 返回key对应的value，不存在时返回null。不记录访问，不影响访问顺序、访问频率和命中率的统计。
+     */
+    public final V peek(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V value = segmentFor(key).peek(key);
+        if (value == null && mHasLarge) {
+            value = getLarge(key, false);
+        }
+        return value;
+    }
+
+    /**
+     * 缓存value。空间不足时根据访问频率淘汰entry。不记录访问，频率由之前的{@link #get}决定。
+     * entry大于每段的容量(maxSize除以段数)时放到共享的LRU区中；大于maxSize的{@link #LARGE_PERCENT}%时不缓存，
+     * 也不淘汰其他entry，key原来的value会被删除。
+     *
+     * @return 之前对应key的value
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int weight = safeSizeOf(key, value);
+        Segment segment = segmentFor(key);
+        // 大小变化后key原来的value可能在另一个区中
+        if (weight > mSegmentCapacity) {
+            return putLarge(key, value, weight, segment.take(key));
+        }
+        V moved = mHasLarge ? removeLarge(key) : null;
+        V previous = segment.put(key, value, weight);
+        if (moved == null) {
+            return previous;
+        }
+        entryRemoved(false, key, moved, value);
+        rebalance();
+        return previous != null ? previous : moved;
+    }
+
+    /**
+     * 删除key对应的entry
+     *
+     * @return 之前对应key的value
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V previous = segmentFor(key).remove(key);
+        if (previous == null && mHasLarge) {
+            previous = removeLarge(key);
+            if (previous != null) {
+                entryRemoved(false, key, previous, null);
+                rebalance();
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * 清空缓存，每个entry都会回调{@link #entryRemoved}
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * 淘汰entry直到总大小不超过maxSize
+     */
+    public void trimToSize(int maxSize) {
+        int largeSize = trimLarge(maxSize < 0 ? -1 : largeMaxSize(maxSize));
+        int segmentMaxSize = maxSize < 0 ? -1 : (maxSize - largeSize) / mSegments.length;
+        for (Segment segment : mSegments) {
+            segment.trimToSize(segmentMaxSize);
+        }
+        rebalance();
+    }
+
+    /**
+     * 修改缓存的最大容量
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        int largeMaxSize;
+        synchronized (this) {
+            setSegmentMaxSize(maxSize);
+            largeMaxSize = largeMaxSize(maxSize);
+        }
+        trimLarge(largeMaxSize);
+        rebalance();
+    }
+
+    /**
+     * 返回entry的大小。默认返回1，此时maxSize表示entry的最大个数。
+     * entry在缓存中的期间大小不能改变。
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * entry被淘汰、删除或替换时回调。回调时不持有任何锁。
+     *
+     * @param evicted 因为空间不足被淘汰时为true，被remove或put替换时为false
+     * @param newValue 被put替换时为新的value，否则为null
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * put时空间不足，一个被命中过的entry从main区(probation或protected)或者大entry的LRU区被淘汰时，
+     * 在{@link #entryRemoved}之后回调。
+     * 准入时被拒绝的新entry、没有被命中过的entry，以及{@link #trimToSize}、{@link #resize}、{@link #evictAll}
+     * 淘汰的entry都不回调。回调时不持有任何锁。
+     */
+    protected void entryEvictedAfterHit(K key, V value) {
+    }
+
+    public final int size() {
+        int size;
+        synchronized (mLargeData) {
+            size = mLarge.weight;
+        }
+        for (Segment segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public final synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public final int hitCount() {
+        int count;
+        synchronized (mLargeData) {
+            count = mLargeHitCount;
+        }
+        for (Segment segment : mSegments) {
+            count += segment.hitCount();
+        }
+        return count;
+    }
+
+    public final int missCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            count += segment.missCount();
+        }
+        return count;
+    }
+
+    public final int putCount() {
+        int count;
+        synchronized (mLargeData) {
+            count = mLargePutCount;
+        }
+        for (Segment segment : mSegments) {
+            count += segment.putCount();
+        }
+        return count;
+    }
+
+    public final int evictionCount() {
+        int count;
+        synchronized (mLargeData) {
+            count = mLargeEvictionCount;
+        }
+        for (Segment segment : mSegments) {
+            count += segment.evictionCount();
+        }
+        return count;
+    }
+
+    @Override
+    public final String toString() {
+        int hits = hitCount();
+        int misses = missCount();
+        int accesses = hits + misses;
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("TinyLfuCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize(), hits, misses, hitPercent);
+    }
+
+    /**
+     * 按总容量和大entry已经占用的容量设置每段的容量，需要持有this的锁
+     */
+    private void setSegmentMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        mSegmentCapacity = Math.max(1, maxSize / mSegments.length);
+        int largeSize;
+        synchronized (mLargeData) {
+            mLargeMaxSize = largeMaxSize(maxSize);
+            largeSize = Math.min(mLarge.weight, mLargeMaxSize);
+        }
+        int segmentMaxSize = Math.max(1, (maxSize - largeSize) / mSegments.length);
+        for (Segment segment : mSegments) {
+            segment.setMaxSize(segmentMaxSize);
+        }
+    }
+
+    private static int largeMaxSize(int maxSize) {
+        return (int) ((long) maxSize * LARGE_PERCENT / 100);
+    }
+
+    /**
+     * 大entry占用的容量变化后，重新分配各段的容量，淘汰超出的entry
+     */
+    private void rebalance() {
+        synchronized (this) {
+            setSegmentMaxSize(mMaxSize);
+        }
+        for (Segment segment : mSegments) {
+            segment.trimToSize(segment.maxSize());
+        }
+    }
+
+    /**
+     * @param recordAccess 是否算作一次访问
+     */
+    private V getLarge(K key, boolean recordAccess) {
+        synchronized (mLargeData) {
+            Node node = mLargeData.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (recordAccess) {
+                mLargeHitCount++;
+                node.hit = true;
+                mLarge.moveToLast(node);
+            }
+            return node.value;
+        }
+    }
+
+    /**
+     * @param moved key在分段中原来的value，已经从分段中删除
+     */
+    private V putLarge(K key, V value, int weight, V moved) {
+        V previous = null;
+        boolean cached;
+        Node evicted = null;
+        synchronized (mLargeData) {
+            mLargePutCount++;
+            Node node = mLargeData.remove(key);
+            if (node != null) {
+                mLarge.remove(node);
+                previous = node.value;
+            }
+            cached = weight <= mLargeMaxSize;
+            if (cached) {
+                node = new Node(key, value, weight);
+                mLargeData.put(key, node);
+                mLarge.add(node);
+                evicted = evictLarge(mLargeMaxSize, true);
+            }
+            mHasLarge = !mLargeData.isEmpty();
+        }
+        if (moved != null) {
+            entryRemoved(false, key, moved, cached ? value : null);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, cached ? value : null);
+        }
+        notifyEvicted(evicted);
+        rebalance();
+        return previous != null ? previous : moved;
+    }
+
+    /**
+     * 删除key的大entry，不回调entryRemoved
+     */
+    private V removeLarge(K key) {
+        synchronized (mLargeData) {
+            Node node = mLargeData.remove(key);
+            if (node == null) {
+                return null;
+            }
+            mLarge.remove(node);
+            mHasLarge = !mLargeData.isEmpty();
+            return node.value;
+        }
+    }
+
+    /**
+     * 淘汰大entry直到它们的总大小不超过maxSize
+     * @return 淘汰后大entry的总大小
+     */
+    private int trimLarge(int maxSize) {
+        Node evicted;
+        int size;
+        synchronized (mLargeData) {
+            evicted = evictLarge(maxSize, false);
+            mHasLarge = !mLargeData.isEmpty();
+            size = mLarge.weight;
+        }
+        notifyEvicted(evicted);
+        return size;
+    }
+
+    /**
+     * 按LRU顺序淘汰大entry，需要持有mLargeData的锁。被淘汰的节点通过next串成链表返回
+     */
+    private Node evictLarge(int maxSize, boolean byPut) {
+        Node evicted = null;
+        while (mLarge.weight > maxSize && mLarge.first != null) {
+            Node victim = mLarge.first;
+            mLarge.remove(victim);
+            mLargeData.remove(victim.key);
+            mLargeEvictionCount++;
+            victim.evictedAfterHit = byPut && victim.hit;
+            victim.next = evicted;
+            evicted = victim;
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(Node evicted) {
+        while (evicted != null) {
+            Node next = evicted.next;
+            evicted.next = null;
+            entryRemoved(true, evicted.key, evicted.value, null);
+            if (evicted.evictedAfterHit) {
+                entryEvictedAfterHit(evicted.key, evicted.value);
+            }
+            evicted = next;
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        return mSegments[spread(key.hashCode()) & mSegmentMask];
+    }
+
+    private static int spread(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+
+    private final class Node {
+        final K key;
+        V value;
+        int weight;
+        int queue;
+        // 加入后被get命中过
+        boolean hit;
+        // 被淘汰时是否回调entryEvictedAfterHit
+        boolean evictedAfterHit;
+        Node prev;
+        Node next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /** 带头尾指针的双向链表，头部是最久未使用的entry */
+    private final class AccessQueue {
+        Node first;
+        Node last;
+        int weight;
+
+        void add(Node node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != last) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    private final class Segment {
+        private final HashMap<K, Node> mData = new HashMap<K, Node>();
+        private final AccessQueue mWindow = new AccessQueue();
+        private final AccessQueue mProbation = new AccessQueue();
+        private final AccessQueue mProtected = new AccessQueue();
+        private final FrequencySketch mSketch;
+
+        private int mMaxSize;
+        private int mWindowMaxSize;
+        private int mProtectedMaxSize;
+        private int mSize;
+
+        private int mHitCount;
+        private int mMissCount;
+        private int mPutCount;
+        private int mEvictionCount;
+
+        Segment(int expectedEntries) {
+            mSketch = new FrequencySketch(expectedEntries);
+        }
+
+        V get(K key) {
+            synchronized (this) {
+                mSketch.increment(key);
+                Node node = mData.get(key);
+                if (node == null) {
+                    mMissCount++;
+                    return null;
+                }
+                mHitCount++;
+                node.hit = true;
+                onAccess(node);
+                return node.value;
+            }
+        }
+
+        V peek(K key) {
+            synchronized (this) {
+                Node node = mData.get(key);
+                return node == null ? null : node.value;
+            }
+        }
+
+        /**
+         * @param weight 不超过每段的容量，大的entry由外面放到共享的LRU区中
+         */
+        V put(K key, V value, int weight) {
+            V previous = null;
+            Node evicted = null;
+            synchronized (this) {
+                mPutCount++;
+                Node node = mData.get(key);
+                if (node != null) {
+                    previous = node.value;
+                    queueOf(node).remove(node);
+                    mSize -= node.weight;
+                    node.value = value;
+                    node.weight = weight;
+                    queueOf(node).add(node);
+                    mSize += weight;
+                    evicted = evict(mMaxSize, true);
+                } else {
+                    node = new Node(key, value, weight);
+                    node.queue = WINDOW;
+                    mData.put(key, node);
+                    mWindow.add(node);
+                    mSize += weight;
+                    evicted = evict(mMaxSize, true);
+                }
+            }
+
+            if (previous != null) {
+                entryRemoved(false, key, previous, value);
+            }
+            notifyEvicted(evicted);
+            return previous;
+        }
+
+        /**
+         * 删除key的entry，不回调entryRemoved
+         */
+        synchronized V take(K key) {
+            Node node = mData.remove(key);
+            if (node == null) {
+                return null;
+            }
+            queueOf(node).remove(node);
+            mSize -= node.weight;
+            return node.value;
+        }
+
+        V remove(K key) {
+            Node node;
+            synchronized (this) {
+                node = mData.remove(key);
+                if (node == null) {
+                    return null;
+                }
+                queueOf(node).remove(node);
+                mSize -= node.weight;
+            }
+            entryRemoved(false, key, node.value, null);
+            return node.value;
+        }
+
+        void trimToSize(int maxSize) {
+            Node evicted;
+            synchronized (this) {
+                evicted = evict(maxSize, false);
+            }
+            notifyEvicted(evicted);
+        }
+
+        synchronized void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            mWindowMaxSize = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+            mProtectedMaxSize = (maxSize - mWindowMaxSize) * PROTECTED_PERCENT / 100;
+        }
+
+        synchronized int maxSize() {
+            return mMaxSize;
+        }
+
+        synchronized int size() {
+            return mSize;
+        }
+
+        synchronized int hitCount() {
+            return mHitCount;
+        }
+
+        synchronized int missCount() {
+            return mMissCount;
+        }
+
+        synchronized int putCount() {
+            return mPutCount;
+        }
+
+        synchronized int evictionCount() {
+            return mEvictionCount;
+        }
+
+        private void onAccess(Node node) {
+            switch (node.queue) {
+                case WINDOW:
+                    mWindow.moveToLast(node);
+                    break;
+                case PROBATION:
+                    // probation中再次被访问，晋升到protected
+                    mProbation.remove(node);
+                    node.queue = PROTECTED;
+                    mProtected.add(node);
+                    // protected溢出时把最久未使用的降级回probation
+                    while (mProtected.weight > mProtectedMaxSize && mProtected.first != node) {
+                        Node demoted = mProtected.first;
+                        mProtected.remove(demoted);
+                        demoted.queue = PROBATION;
+                        mProbation.add(demoted);
+                    }
+                    break;
+                default:
+                    mProtected.moveToLast(node);
+                    break;
+            }
+        }
+
+        /**
+         * 淘汰entry直到总大小不超过maxSize，被淘汰的节点通过next串成链表返回，
+         * 以便在锁外回调entryRemoved。
+         * @param byPut 是否是put时空间不足，只有这时才回调entryEvictedAfterHit
+         */
+        private Node evict(int maxSize, boolean byPut) {
+            // window溢出的entry进入probation，成为准入候选
+            while (mWindow.weight > mWindowMaxSize && mWindow.first != null) {
+                Node node = mWindow.first;
+                mWindow.remove(node);
+                node.queue = PROBATION;
+                mProbation.add(node);
+            }
+
+            Node evicted = null;
+            while (mSize > maxSize && !mData.isEmpty()) {
+                Node victim;
+                boolean rejected = false;
+                Node candidate = mProbation.last;
+                if (mProbation.first != null && candidate != mProbation.first && maxSize > 0) {
+                    // 候选者频率更高才能挤掉probation中最久未使用的entry
+                    victim = mProbation.first;
+                    if (mSketch.frequency(candidate.key) <= mSketch.frequency(victim.key)) {
+                        victim = candidate;
+                        rejected = true;
+                    }
+                } else if (mProbation.first != null) {
+                    victim = mProbation.first;
+                } else if (mProtected.first != null) {
+                    victim = mProtected.first;
+                } else {
+                    victim = mWindow.first;
+                }
+
+                victim.evictedAfterHit = byPut && !rejected && victim.hit && victim.queue != WINDOW;
+                queueOf(victim).remove(victim);
+                mData.remove(victim.key);
+                mSize -= victim.weight;
+                mEvictionCount++;
+                victim.next = evicted;
+                evicted = victim;
+            }
+            return evicted;
+        }
+
+        private AccessQueue queueOf(Node node) {
+            switch (node.queue) {
+                case WINDOW:
+                    return mWindow;
+                case PROBATION:
+                    return mProbation;
+                default:
+                    return mProtected;
+            }
+        }
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * 4bit计数器的count-min sketch，用来估算key的访问频率。
+     * 记录次数达到采样上限后所有计数器减半，使过去的热点逐渐冷却。
+     */
+    private static final class FrequencySketch {
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int[] SEEDS = {0xc3a5c85c, 0xb492b66f, 0x9ae16a3b, 0x8f6b8e0d};
+
+        private final long[] mTable;
+        private final int mTableMask;
+        private final int mSampleSize;
+        private int mAdditions;
+
+        FrequencySketch(int expectedEntries) {
+            int length = ceilingPowerOfTwo(Math.max(16, expectedEntries));
+            mTable = new long[length];
+            mTableMask = length - 1;
+            mSampleSize = 10 * length;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int start = counterGroup(hash);
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            int start = counterGroup(hash);
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++mAdditions == mSampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xfL << offset;
+            if ((mTable[index] & mask) != mask) {
+                mTable[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 每个long中的16个计数器分成4组，用hash的最高两位选组。
+         * 低位已经用来选段，同一段中的key低位都相同，用低位选组的话一段只会用到一组计数器。
+         */
+        private static int counterGroup(int hash) {
+            return (hash >>> 30) << 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (long) (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & mTableMask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+            }
+            mAdditions /= 2;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes the binary journal format. A binary journal starts
+ * with a 16-byte header: the magic number, the format version, the app
+ * version and the value count, each a big-endian int. Each record is:
+ * <ul>
+ * <li>an op code byte. The high bit is set if the key is packed.
+ * <li>the key. A key of 32 lowercase hex digits, like an MD5 hash, is packed
+ * into its 16 raw bytes. Any other key is a length byte followed by its
+ * ASCII characters.
+ * <li>for CLEAN records only: each value's length, then the entry's
+ * sequence number, all as unsigned varints.
+ * </ul>
+ * Records are self-delimiting, so a record cut off at the end of the file
+ * shows up as a truncated tail.
+ */
+final class BinaryJournal {
+    static final int MAGIC = 0xD15C1C0E;
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 16;
+
+    static final int OP_CLEAN = 1;
+    static final int OP_DIRTY = 2;
+    static final int OP_REMOVE = 3;
+    static final int OP_READ = 4;
+    private static final int KEY_PACKED = 0x80;
+    private static final int PACKED_KEY_LENGTH = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinaryJournal() {
+    }
+
+    /** Returns true if {@code header} starts with the binary journal magic. */
+    static boolean isBinary(byte[] header, int length) {
+        return length >= 4 && readInt(header, 0) == MAGIC;
+    }
+
+    static void writeHeader(OutputStream out, int appVersion, int valueCount) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        writeInt(header, 0, MAGIC);
+        writeInt(header, 4, VERSION);
+        writeInt(header, 8, appVersion);
+        writeInt(header, 12, valueCount);
+        out.write(header);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24
+                | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8
+                | (buffer[offset + 3] & 0xff);
+    }
+
+    /** A reusable buffer that records are encoded into. Not thread safe. */
+    static final class RecordBuffer {
+        byte[] bytes = new byte[64];
+        int length;
+
+        /** Encodes a CLEAN record, replacing the buffer's contents. */
+        RecordBuffer clean(String key, long[] lengths, long sequenceNumber) {
+            length = 0;
+            writeKey(OP_CLEAN, key);
+            for (long value : lengths) {
+                writeVarint(value);
+            }
+            writeVarint(sequenceNumber);
+            return this;
+        }
+
+        /** Encodes a DIRTY, REMOVE or READ record, replacing the buffer's contents. */
+        RecordBuffer record(int op, String key) {
+            length = 0;
+            writeKey(op, key);
+            return this;
+        }
+
+        private void writeKey(int op, String key) {
+            int keyLength = key.length();
+            ensureCapacity(2 + keyLength);
+            if (keyLength == PACKED_KEY_LENGTH && isHex(key)) {
+                bytes[length++] = (byte) (op | KEY_PACKED);
+                for (int i = 0; i < PACKED_KEY_LENGTH; i += 2) {
+                    bytes[length++] = (byte) (hexValue(key.charAt(i)) << 4 | hexValue(key.charAt(i + 1)));
+                }
+            } else {
+                bytes[length++] = (byte) op;
+                bytes[length++] = (byte) keyLength;
+                for (int i = 0; i < keyLength; i++) {
+                    bytes[length++] = (byte) key.charAt(i);
+                }
+            }
+        }
+
+        private void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+
+        private static boolean isHex(String key) {
+            for (int i = 0; i < key.length(); i++) {
+                if (hexValue(key.charAt(i)) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hexValue(char c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                return c - 'a' + 10;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Reads records from a binary journal, after its header. The fields
+     * describe the record most recently returned by {@link #next}.
+     */
+    static final class Reader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int pos;
+        private int end;
+        private final char[] keyChars = new char[PACKED_KEY_LENGTH];
+
+        int op;
+        String key;
+        final long[] lengths;
+        long sequenceNumber;
+        /** True if the journal ended in the middle of a record. */
+        boolean truncated;
+
+        Reader(InputStream in, int valueCount) {
+            this.in = in;
+            this.lengths = new long[valueCount];
+        }
+
+        /**
+         * Reads and checks the header.
+         *
+         * @throws IOException if this isn't a binary journal for the given
+         *     app version and value count.
+         */
+        void readHeader(int appVersion, int valueCount) throws IOException {
+            byte[] header = new byte[HEADER_LENGTH];
+            for (int i = 0; i < HEADER_LENGTH; i++) {
+                header[i] = (byte) readByte();
+            }
+            int magic = readInt(header, 0);
+            int version = readInt(header, 4);
+            int headerAppVersion = readInt(header, 8);
+            int headerValueCount = readInt(header, 12);
+            if (magic != MAGIC || version != VERSION
+                    || headerAppVersion != appVersion || headerValueCount != valueCount) {
+                throw new IOException("unexpected journal header: [" + Integer.toHexString(magic) + ", "
+                        + version + ", " + headerAppVersion + ", " + headerValueCount + "]");
+            }
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return false at the end of the journal, including a truncated
+         *     last record, in which case {@link #truncated} is set.
+         * @throws IOException if a record is malformed.
+         */
+        boolean next() throws IOException {
+            if (pos == end && !fill()) {
+                return false;
+            }
+            try {
+                int opByte = readByte();
+                op = opByte & ~KEY_PACKED;
+                if ((opByte & KEY_PACKED) != 0) {
+                    for (int i = 0; i < PACKED_KEY_LENGTH; i += 2) {
+                        int b = readByte();
+                        keyChars[i] = HEX_DIGITS[b >>> 4];
+                        keyChars[i + 1] = HEX_DIGITS[b & 0xf];
+                    }
+                    key = new String(keyChars, 0, PACKED_KEY_LENGTH);
+                } else {
+                    int keyLength = readByte();
+                    char[] chars = new char[keyLength];
+                    for (int i = 0; i < keyLength; i++) {
+                        chars[i] = (char) readByte();
+                    }
+                    key = new String(chars);
+                }
+                if (op == OP_CLEAN) {
+                    for (int i = 0; i < lengths.length; i++) {
+                        lengths[i] = readVarint();
+                    }
+                    sequenceNumber = readVarint();
+                } else if (op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+                    throw new IOException("unexpected journal op: " + op);
+                }
+                return true;
+            } catch (EOFException e) {
+                truncated = true;
+                return false;
+            }
+        }
+
+        private long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        private int readByte() throws IOException {
+            if (pos == end && !fill()) {
+                throw new EOFException();
+            }
+            return buffer[pos++] & 0xff;
+        }
+
+        private boolean fill() throws IOException {
+            int count = in.read(buffer, 0, buffer.length);
+            if (count <= 0) {
+                return false;
+            }
+            pos = 0;
+            end = count;
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
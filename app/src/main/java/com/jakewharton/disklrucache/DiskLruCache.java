@@ -16,8 +16,13 @@
 
 package com.jakewharton.disklrucache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -33,6 +38,7 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -89,6 +95,12 @@ public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TEMP = "journal.tmp";
     static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+    static final String CHECKPOINT_FILE = "journal.ckpt";
+    static final String CHECKPOINT_FILE_TEMP = "journal.ckpt.tmp";
+    static final String IMPORT_MARKER_FILE = "journal.import";
+    static final String TEMP_DIRECTORY = "tmp";
+    /** Minimum number of journal records between index checkpoints. */
+    static final int CHECKPOINT_INTERVAL = 1000;
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -98,6 +110,17 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final String EVICTED_SUFFIX = ".evicted";
+    private static final String IMPORT_SUFFIX = ".import";
+    static final String ARCHIVE_MAGIC = "libcore.io.DiskLruCache.archive";
+    static final int ARCHIVE_VERSION = 1;
+    private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Names of value files: "key.index", and "key.index.tmp" for the dirty
+     * files of caches written before dirty files moved to the temp directory.
+     */
+    private static final Pattern VALUE_FILE_PATTERN =
+            Pattern.compile("(" + STRING_KEY_PATTERN + ")\\.\\d+(\\.tmp)?");
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -133,31 +156,87 @@ public final class DiskLruCache implements Closeable {
      *   o READ lines track accesses for LRU.
      *   o REMOVE lines track entries that have been deleted.
      *
-     * The journal file is appended to as cache operations occur. The journal may
+     * Caches opened with a binary journal use the same records in the compact
+     * encoding described in BinaryJournal. A journal in the other format is
+     * read as usual and rewritten in the requested one, so switching formats
+     * migrates the journal on the next open.
+     *
+     * The journal file is appended to as cache operations occur. Records are
+     * written in batches by a JournalWriter thread, so after a crash the
+     * journal holds a prefix of the operations: an edit is only published
+     * once its DIRTY line is on disk, a published edit whose CLEAN line was
+     * lost is dropped as dirty on the next open, and dirty files without a
+     * DIRTY line are deleted. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Files that never outlive the process (dirty values, evicted values
+     * waiting for the eviction listener and values being imported) are kept
+     * in the "tmp" directory, which is emptied when the cache is opened.
+     * Opening doesn't otherwise list the directory, except after an import
+     * that was interrupted before its entries were journaled; see
+     * importFrom().
+     *
+     * Replaying a journal takes time proportional to its length, which grows
+     * with every READ until the next compaction. To bound that, the index is
+     * periodically checkpointed to "journal.ckpt" (see IndexCheckpoint) with
+     * the journal offset it is current up to; opening the cache loads the
+     * checkpoint and replays only the journal after that offset. Compacting
+     * the journal deletes the checkpoint, and a checkpoint whose offset is
+     * past the end of the journal, e.g. because the journal's tail was lost,
+     * is deleted and the whole journal is replayed.
+     *
+     * A cache can also be exported to and imported from a single archive; see
+     * exportTo() and importFrom(). An archive looks like this, written with
+     * DataOutputStream:
+     *     "libcore.io.DiskLruCache.archive" (UTF), archive version, app
+     *     version and value count (int)
+     *     for each entry, least recently used first: true (boolean), the key
+     *     (UTF), then for each value its length (long) followed by its bytes
+     *     false (boolean)
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
     private final File journalFileBackup;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
+    private final File importMarkerFile;
+    private final File tempDirectory;
+    /** Imports that may have published entries the journal doesn't have yet; guarded by this. */
+    private int importsInProgress;
+    private long nextImportId;
     private final int appVersion;
     private long maxSize;
     private final int valueCount;
+    private final boolean binaryJournal;
     private long size = 0;
-    private Writer journalWriter;
+    private JournalWriter journalWriter;
+    /** Encodes binary journal records; guarded by this. */
+    private final BinaryJournal.RecordBuffer recordBuffer = new BinaryJournal.RecordBuffer();
     private final LinkedHashMap<String, Entry> lruEntries =
             new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
+    /** Journal records since the last checkpoint; guarded by this. */
+    private int recordsSinceCheckpoint;
+    private boolean checkpointPending;
+    /** Incremented each time the journal is rebuilt; guarded by this. */
+    private int journalGeneration;
+    private EvictionListener evictionListener;
+    /** True while {@link #openLazily} is loading the index; guarded by this. */
+    private boolean loading;
+    /** Why {@link #openLazily} failed to load the index, or null. */
+    private Throwable loadError;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
+     * Numbers start at 1; 0 is never a committed edit.
      */
-    private long nextSequenceNumber = 0;
+    private long nextSequenceNumber = 1;
 
     /** This cache uses a single background thread to evict entries. */
     final ThreadPoolExecutor executorService =
@@ -177,15 +256,72 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
     };
+    private final Callable<Void> checkpointCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            IndexCheckpoint checkpoint;
+            int generation;
+            synchronized (DiskLruCache.this) {
+                checkpointPending = false;
+                if (journalWriter == null || journalRebuildRequired()) {
+                    return null; // Closed, or about to be compacted anyway.
+                }
+                checkpoint = snapshotIndex();
+                generation = journalGeneration;
+                recordsSinceCheckpoint = 0;
+            }
+            // Write outside the lock; only the rename needs to be ordered
+            // against rebuildJournal().
+            checkpoint.writeTo(checkpointFileTmp, appVersion, valueCount);
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null || generation != journalGeneration) {
+                    deleteIfExists(checkpointFileTmp);
+                    return null;
+                }
+                renameTo(checkpointFileTmp, checkpointFile, true);
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Receives entries that were evicted to honor the size limit. Entries
+     * removed explicitly with {@link #remove} are not reported.
+     */
+    public interface EvictionListener {
+        /**
+         * Called with the cache lock held while choosing the entry to evict.
+         * Returning false keeps the entry and moves on to the next least
+         * recently used one; if every entry is kept, the least recently used
+         * one is evicted anyway so that the cache honors its size limit.
+         * {@code files} are the entry's clean files and must not be modified.
+         * Implementations must not call back into the cache, except for
+         * {@link #peekString}.
+         */
+        boolean canEvict(String key, File[] files);
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+        /**
+         * Called on the cache's background thread without holding the cache
+         * lock. {@code files} contain the evicted entry's values, indexed like
+         * the entry; a file may be missing if the value was never written.
+         * The files are deleted when this method returns.
+         */
+        void onEntryEvicted(String key, File[] files);
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
         this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TEMP);
+        this.importMarkerFile = new File(directory, IMPORT_MARKER_FILE);
+        this.tempDirectory = new File(directory, TEMP_DIRECTORY);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.binaryJournal = binaryJournal;
     }
 
     /**
@@ -199,6 +335,23 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param binaryJournal true to keep the journal in the compact binary
+     *     format, false for the text format. An existing journal in the other
+     *     format is migrated.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -206,25 +359,76 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalArgumentException("valueCount <= 0");
         }
 
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+        cache.loadIndex();
+        return cache;
+    }
+
+    /**
+     * Opens the cache in {@code directory} like {@link #open(File, int, int,
+     * long, boolean)}, but returns immediately and reads the journal on the
+     * cache's background thread. Until the index is loaded, calls that need
+     * it block; they don't wait for anything else. If loading fails, calls
+     * that throw {@code IOException} throw one caused by the failure, even if
+     * it was a {@code RuntimeException}, and other calls throw an
+     * {@code IllegalStateException} caused by it.
+     */
+    public static DiskLruCache openLazily(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+
+        final DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+        cache.loading = true;
+        cache.executorService.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    cache.loadIndex();
+                } catch (IOException e) {
+                    cache.loadError = e;
+                } catch (RuntimeException e) {
+                    // Reported like an IOException instead of as "cache is closed".
+                    cache.loadError = e;
+                } finally {
+                    synchronized (cache) {
+                        cache.loading = false;
+                        cache.notifyAll();
+                    }
+                }
+                // The size limit may have changed while loading.
+                cache.executorService.submit(cache.cleanupCallable);
+                return null;
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * Reads the journal, or creates an empty cache if there is none or it is
+     * corrupt. Callers wait for {@link #loading} instead of the lock, so this
+     * may take the lock without deadlocking.
+     */
+    private void loadIndex() throws IOException {
         // If a bkp file exists, use it instead.
-        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-        if (backupFile.exists()) {
-            File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFileBackup.exists()) {
             // If journal file also exists just delete backup file.
             if (journalFile.exists()) {
-                backupFile.delete();
+                journalFileBackup.delete();
             } else {
-                renameTo(backupFile, journalFile, false);
+                renameTo(journalFileBackup, journalFile, false);
             }
         }
 
         // Prefer to pick up where we left off.
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        if (journalFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                return cache;
+                readJournal();
+                processJournal();
+                return;
             } catch (IOException journalIsCorrupt) {
                 System.out
                         .println("DiskLruCache "
@@ -232,18 +436,163 @@ public final class DiskLruCache implements Closeable {
                                 + " is corrupt: "
                                 + journalIsCorrupt.getMessage()
                                 + ", removing");
-                cache.delete();
+                if (journalWriter != null) {
+                    journalWriter.close();
+                    journalWriter = null;
+                }
+                lruEntries.clear();
+                size = 0;
+                redundantOpCount = 0;
+                recordsSinceCheckpoint = 0;
+                nextSequenceNumber = 1;
+                Util.deleteContents(directory);
             }
         }
 
         // Create a new empty cache.
-        directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        cache.rebuildJournal();
-        return cache;
+        tempDirectory.mkdirs();
+        rebuildJournal();
     }
 
     private void readJournal() throws IOException {
+        boolean binary = isBinaryJournal();
+        long offset = loadCheckpoint(binary);
+        boolean truncated = binary ? readBinaryJournal(offset) : readTextJournal(offset);
+        // If we ended on a truncated record, rebuild the journal before appending
+        // to it. A journal in the other format is rebuilt in this one.
+        if (truncated || binary != binaryJournal) {
+            rebuildJournal();
+        } else {
+            journalWriter = new JournalWriter(new FileOutputStream(journalFile, true), journalFile.length());
+        }
+    }
+
+    private boolean isBinaryJournal() throws IOException {
+        InputStream in = new FileInputStream(journalFile);
+        try {
+            byte[] header = new byte[4];
+            int length = 0;
+            while (length < header.length) {
+                int count = in.read(header, length, header.length - length);
+                if (count == -1) {
+                    break;
+                }
+                length += count;
+            }
+            return BinaryJournal.isBinary(header, length);
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Loads the index from the checkpoint, if there is a usable one.
+     *
+     * @return the journal offset to replay from, or 0 to replay the whole
+     *     journal.
+     */
+    private long loadCheckpoint(boolean binary) throws IOException {
+        deleteIfExists(checkpointFileTmp);
+        IndexCheckpoint checkpoint = IndexCheckpoint.read(checkpointFile, appVersion, valueCount);
+        if (checkpoint == null
+                || checkpoint.binaryJournal != binary
+                || checkpoint.journalOffset > journalFile.length()) {
+            // Once more records are appended, a checkpoint past the end of the
+            // journal would point into the wrong records.
+            deleteIfExists(checkpointFile);
+            return 0;
+        }
+        BinaryJournal.Reader reader = checkpoint.newReader(valueCount);
+        int recordCount = 0;
+        try {
+            while (reader.next()) {
+                readJournalRecord(reader);
+                recordCount++;
+            }
+        } catch (IOException e) {
+            reader.truncated = true;
+        }
+        if (reader.truncated || recordCount != checkpoint.entryCount) {
+            // Like a missing checkpoint, this only costs a full replay.
+            lruEntries.clear();
+            nextSequenceNumber = 1;
+            deleteIfExists(checkpointFile);
+            return 0;
+        }
+        nextSequenceNumber = Math.max(nextSequenceNumber, checkpoint.nextSequenceNumber);
+        // As if the checkpointed journal had been replayed.
+        redundantOpCount = checkpoint.redundantOpCount + checkpoint.entryCount;
+        return checkpoint.journalOffset;
+    }
+
+    /** Opens the journal and skips to {@code offset}. */
+    private InputStream openJournalAt(long offset) throws IOException {
+        InputStream in = new FileInputStream(journalFile);
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                Util.closeQuietly(in);
+                throw new EOFException("journal shorter than " + offset);
+            }
+            remaining -= skipped;
+        }
+        return in;
+    }
+
+    /**
+     * Replays a binary journal from {@code offset}, or from the start if it is
+     * 0, and returns true if its last record is truncated.
+     */
+    private boolean readBinaryJournal(long offset) throws IOException {
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(new FileInputStream(journalFile), valueCount);
+        try {
+            reader.readHeader(appVersion, valueCount);
+            if (offset > 0) {
+                reader.close();
+                reader = new BinaryJournal.Reader(openJournalAt(offset), valueCount);
+            }
+            int recordCount = 0;
+            while (reader.next()) {
+                readJournalRecord(reader);
+                recordCount++;
+            }
+            redundantOpCount += recordCount - lruEntries.size();
+            recordsSinceCheckpoint = recordCount;
+            return reader.truncated;
+        } finally {
+            Util.closeQuietly(reader);
+        }
+    }
+
+    private void readJournalRecord(BinaryJournal.Reader reader) {
+        String key = reader.key;
+        if (reader.op == BinaryJournal.OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        if (reader.op == BinaryJournal.OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(reader.lengths, 0, entry.lengths, 0, valueCount);
+            entry.sequenceNumber = reader.sequenceNumber;
+            nextSequenceNumber = Math.max(nextSequenceNumber, reader.sequenceNumber + 1);
+        } else if (reader.op == BinaryJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        }
+        // OP_READ: this work was already done by calling lruEntries.get().
+    }
+
+    /**
+     * Replays a text journal from {@code offset}, or from the start if it is
+     * 0, and returns true if its last line is truncated.
+     */
+    private boolean readTextJournal(long offset) throws IOException {
         StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
         try {
             String magic = reader.readLine();
@@ -259,6 +608,10 @@ public final class DiskLruCache implements Closeable {
                 throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
                         + valueCountString + ", " + blank + "]");
             }
+            if (offset > 0) {
+                reader.close();
+                reader = new StrictLineReader(openJournalAt(offset), Util.US_ASCII);
+            }
 
             int lineCount = 0;
             while (true) {
@@ -269,15 +622,9 @@ public final class DiskLruCache implements Closeable {
                     break;
                 }
             }
-            redundantOpCount = lineCount - lruEntries.size();
-
-            // If we ended on a truncated line, rebuild the journal before appending to it.
-            if (reader.hasUnterminatedLine()) {
-                rebuildJournal();
-            } else {
-                journalWriter = new BufferedWriter(new OutputStreamWriter(
-                        new FileOutputStream(journalFile, true), Util.US_ASCII));
-            }
+            redundantOpCount += lineCount - lruEntries.size();
+            recordsSinceCheckpoint = lineCount;
+            return reader.hasUnterminatedLine();
         } finally {
             Util.closeQuietly(reader);
         }
@@ -313,6 +660,9 @@ public final class DiskLruCache implements Closeable {
             entry.readable = true;
             entry.currentEditor = null;
             entry.setLengths(parts);
+            // The text format doesn't record sequence numbers. Give each clean
+            // entry its own so an edit committed after opening still changes it.
+            entry.sequenceNumber = nextSequenceNumber++;
         } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
             entry.currentEditor = new Editor(entry);
         } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
@@ -328,6 +678,22 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        // Dirty files, evicted values that were not delivered before the
+        // process died and values of an interrupted import.
+        File[] tempFiles = tempDirectory.listFiles();
+        if (tempFiles == null) {
+            // Written by a version that kept these files next to the values.
+            tempDirectory.mkdirs();
+            deleteUnjournaledFiles();
+        } else {
+            for (File file : tempFiles) {
+                deleteIfExists(file);
+            }
+        }
+        if (importMarkerFile.exists()) {
+            deleteUnjournaledFiles();
+            deleteIfExists(importMarkerFile);
+        }
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -338,22 +704,98 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
                     deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
                 }
                 i.remove();
             }
         }
     }
 
+    /**
+     * Deletes the value files of entries the journal doesn't know about, e.g.
+     * entries published by an import that was interrupted before the journal
+     * was rebuilt. This lists the whole directory, so it only runs when
+     * {@link #importMarkerFile} says it is needed.
+     */
+    private void deleteUnjournaledFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Matcher matcher = VALUE_FILE_PATTERN.matcher(file.getName());
+            if (matcher.matches()
+                    && (matcher.group(2) != null || !lruEntries.containsKey(matcher.group(1)))) {
+                deleteIfExists(file);
+            }
+        }
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
+        // The checkpoint's offset refers to the old journal. Delete it first so
+        // that it can't be paired with the new one.
+        journalGeneration++;
+        deleteIfExists(checkpointFile);
+        recordsSinceCheckpoint = 0;
+
+        if (binaryJournal) {
+            writeBinaryJournal();
+        } else {
+            writeTextJournal();
+        }
+
+        if (journalFile.exists()) {
+            renameTo(journalFile, journalFileBackup, true);
+        }
+        renameTo(journalFileTmp, journalFile, false);
+        journalFileBackup.delete();
+
+        // Records still queued for the old journal describe state that the
+        // rebuilt journal already contains.
+        OutputStream out = new FileOutputStream(journalFile, true);
         if (journalWriter != null) {
-            journalWriter.close();
+            journalWriter.reset(out, journalFile.length());
+        } else {
+            journalWriter = new JournalWriter(out, journalFile.length());
+        }
+    }
+
+    /**
+     * Captures the index in LRU order, as a rebuilt binary journal would hold
+     * it, with the journal offset just after the last record queued so far.
+     */
+    private synchronized IndexCheckpoint snapshotIndex() {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(lruEntries.size() * 24);
+        for (Entry entry : lruEntries.values()) {
+            BinaryJournal.RecordBuffer record = entry.currentEditor != null
+                    ? recordBuffer.record(BinaryJournal.OP_DIRTY, entry.key)
+                    : recordBuffer.clean(entry.key, entry.lengths, entry.sequenceNumber);
+            records.write(record.bytes, 0, record.length);
         }
+        byte[] bytes = records.toByteArray();
+        return new IndexCheckpoint(binaryJournal, journalWriter.appendedBytes(), nextSequenceNumber,
+                redundantOpCount, lruEntries.size(), bytes, 0, bytes.length);
+    }
+
+    private void writeBinaryJournal() throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(journalFileTmp));
+        try {
+            BinaryJournal.writeHeader(out, appVersion, valueCount);
+            for (Entry entry : lruEntries.values()) {
+                BinaryJournal.RecordBuffer record = entry.currentEditor != null
+                        ? recordBuffer.record(BinaryJournal.OP_DIRTY, entry.key)
+                        : recordBuffer.clean(entry.key, entry.lengths, entry.sequenceNumber);
+                out.write(record.bytes, 0, record.length);
+            }
+        } finally {
+            out.close();
+        }
+    }
 
+    private void writeTextJournal() throws IOException {
         Writer writer = new BufferedWriter(
                 new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
         try {
@@ -377,15 +819,42 @@ public final class DiskLruCache implements Closeable {
         } finally {
             writer.close();
         }
+    }
 
-        if (journalFile.exists()) {
-            renameTo(journalFile, journalFileBackup, true);
+    /** Queues a DIRTY, REMOVE or READ record and returns its number. */
+    private long journal(String op, int binaryOp, String key) throws IOException {
+        checkpointIfNeeded();
+        if (binaryJournal) {
+            BinaryJournal.RecordBuffer record = recordBuffer.record(binaryOp, key);
+            return journalWriter.append(record.bytes, 0, record.length);
         }
-        renameTo(journalFileTmp, journalFile, false);
-        journalFileBackup.delete();
+        return journalWriter.append(op + ' ' + key + '\n');
+    }
 
-        journalWriter = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+    /** Queues a CLEAN record for {@code entry}. */
+    private void journalClean(Entry entry) throws IOException {
+        checkpointIfNeeded();
+        if (binaryJournal) {
+            BinaryJournal.RecordBuffer record = recordBuffer.clean(entry.key, entry.lengths, entry.sequenceNumber);
+            journalWriter.append(record.bytes, 0, record.length);
+        } else {
+            journalWriter.append(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        }
+    }
+
+    /**
+     * Schedules a checkpoint once the journal tail that opening the cache
+     * would replay reaches {@link #CHECKPOINT_INTERVAL} records and a quarter
+     * of the entry count, which keeps checkpointing cheap relative to the
+     * records it saves replaying.
+     */
+    private void checkpointIfNeeded() {
+        recordsSinceCheckpoint++;
+        if (!checkpointPending
+                && recordsSinceCheckpoint >= Math.max(CHECKPOINT_INTERVAL, lruEntries.size() / 4)) {
+            checkpointPending = true;
+            executorService.submit(checkpointCallable);
+        }
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -407,46 +876,315 @@ public final class DiskLruCache implements Closeable {
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     *
+     * <p>The cache lock is only held to look up the entry and to verify it
+     * afterwards; the files are opened outside of it and the READ record is
+     * written to the journal by the journal thread, so concurrent readers
+     * don't serialize on file system calls.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
+        while (true) {
+            Entry entry;
+            long sequenceNumber;
+            synchronized (this) {
+                checkOpen();
+                entry = lruEntries.get(key);
+                if (entry == null || !entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
+            }
+
+            // Open all streams eagerly to guarantee that we see a single published
+            // snapshot. If we opened streams lazily then the streams could come
+            // from different edits.
+            InputStream[] ins = new InputStream[valueCount];
+            boolean missing = false;
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                missing = true;
+            }
+
+            synchronized (this) {
+                // A commit renames the files and bumps the sequence number in one
+                // critical section, so an unchanged number means the streams all
+                // belong to the edit we looked up.
+                boolean changed = journalWriter == null
+                        || lruEntries.get(key) != entry
+                        || entry.sequenceNumber != sequenceNumber;
+                if (missing || changed) {
+                    for (InputStream in : ins) {
+                        Util.closeQuietly(in);
+                    }
+                    checkOpen();
+                    if (changed) {
+                        continue; // Committed, removed or evicted while opening; look again.
+                    }
+                    return null; // A file must have been deleted manually!
+                }
+
+                redundantOpCount++;
+                journal(READ, BinaryJournal.OP_READ, key);
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+                return new Snapshot(key, sequenceNumber, ins, entry.lengths.clone());
+            }
         }
+    }
 
-        if (!entry.readable) {
+    /**
+     * Opens the current values of {@code key} like {@link #get}, without
+     * journaling a read.
+     */
+    private synchronized Snapshot openSnapshot(String key) {
+        checkNotClosed();
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
             return null;
         }
-
-        // Open all streams eagerly to guarantee that we see a single published
-        // snapshot. If we opened streams lazily then the streams could come
-        // from different edits.
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
                 ins[i] = new FileInputStream(entry.getCleanFile(i));
             }
         } catch (FileNotFoundException e) {
-            // A file must have been deleted manually!
-            for (int i = 0; i < valueCount; i++) {
-                if (ins[i] != null) {
-                    Util.closeQuietly(ins[i]);
-                } else {
-                    break;
-                }
+            for (InputStream in : ins) {
+                Util.closeQuietly(in);
             }
             return null;
         }
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone());
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
+    /**
+     * Writes every readable entry to {@code out} as a single sequential
+     * archive that {@link #importFrom} can load into a cache with the same app
+     * version and value count. Entries are written least recently used first,
+     * so an import preserves their order. Reads are not journaled and the cache
+     * lock is only held while each entry's files are opened. {@code out} is
+     * flushed but not closed.
+     *
+     * @return the number of exported entries.
+     */
+    public int exportTo(OutputStream out) throws IOException {
+        List<String> keys;
+        synchronized (this) {
+            checkOpen();
+            keys = new ArrayList<String>(lruEntries.keySet());
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, ARCHIVE_BUFFER_SIZE));
+        data.writeUTF(ARCHIVE_MAGIC);
+        data.writeInt(ARCHIVE_VERSION);
+        data.writeInt(appVersion);
+        data.writeInt(valueCount);
+        byte[] buffer = new byte[ARCHIVE_BUFFER_SIZE];
+        int count = 0;
+        for (String key : keys) {
+            Snapshot snapshot = openSnapshot(key);
+            if (snapshot == null) {
+                continue; // Removed or never published.
+            }
+            try {
+                data.writeBoolean(true);
+                data.writeUTF(key);
+                for (int i = 0; i < valueCount; i++) {
+                    long length = snapshot.getLength(i);
+                    data.writeLong(length);
+                    copy(snapshot.getInputStream(i), data, length, buffer);
+                }
+            } finally {
+                snapshot.close();
+            }
+            count++;
+        }
+        data.writeBoolean(false);
+        data.flush();
+        return count;
+    }
+
+    /**
+     * Loads the entries of an archive written by {@link #exportTo} in a single
+     * streaming pass. Values are copied into temporary files without holding
+     * the cache lock, which is only taken to publish each entry; instead of
+     * journaling and flushing every entry, the journal is rebuilt once at the
+     * end. Archived entries replace existing entries with the same key, except
+     * entries that are being edited, which are kept. {@code in} is not closed.
+     *
+     * <p>If the archive is truncated or corrupt, entries imported before the
+     * error are kept and an {@code IOException} is thrown. A marker file is
+     * written before the first entry is published and deleted once the
+     * journal is rebuilt, so if the process dies during an import, the files
+     * of entries that were not yet journaled are deleted the next time the
+     * cache is opened.
+     *
+     * @return the number of imported entries.
+     */
+    public int importFrom(InputStream in) throws IOException {
+        long importId = beginImport();
+        int count = 0;
+        File[] files = new File[valueCount];
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in, ARCHIVE_BUFFER_SIZE));
+            String magic = data.readUTF();
+            int version = data.readInt();
+            int archiveAppVersion = data.readInt();
+            int archiveValueCount = data.readInt();
+            if (!ARCHIVE_MAGIC.equals(magic)
+                    || version != ARCHIVE_VERSION
+                    || archiveAppVersion != appVersion
+                    || archiveValueCount != valueCount) {
+                throw new IOException("unexpected archive header: [" + magic + ", " + version + ", "
+                        + archiveAppVersion + ", " + archiveValueCount + "]");
+            }
+
+            byte[] buffer = new byte[ARCHIVE_BUFFER_SIZE];
+            long[] lengths = new long[valueCount];
+            while (data.readBoolean()) {
+                String key = data.readUTF();
+                if (!LEGAL_KEY_PATTERN.matcher(key).matches()) {
+                    throw new IOException("unexpected archive key: " + key);
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    lengths[i] = data.readLong();
+                    if (lengths[i] < 0) {
+                        throw new IOException("unexpected archive length: " + lengths[i]);
+                    }
+                    // Named after the import, so concurrent edits and imports
+                    // of the same key don't share the file.
+                    files[i] = new File(tempDirectory, key + "." + i + "." + importId + IMPORT_SUFFIX);
+                    OutputStream out = new FileOutputStream(files[i]);
+                    try {
+                        copy(data, out, lengths[i], buffer);
+                    } finally {
+                        out.close();
+                    }
+                }
+                if (publishImportedEntry(key, files, lengths)) {
+                    count++;
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    files[i] = null;
+                }
+            }
+        } finally {
+            // The archive ended in the middle of an entry, or it was skipped.
+            for (File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+            endImport(count);
+        }
+        return count;
+    }
+
+    /** Writes the import marker if no other import has, and returns an id for the import's files. */
+    private synchronized long beginImport() throws IOException {
+        checkOpen();
+        if (importsInProgress == 0 && !importMarkerFile.exists() && !importMarkerFile.createNewFile()) {
+            throw new IOException("failed to create " + importMarkerFile);
+        }
+        importsInProgress++;
+        return nextImportId++;
+    }
+
+    /**
+     * Publishes an imported entry whose values were copied to {@code files}.
+     *
+     * @return false if the entry is being edited and was kept.
+     */
+    private synchronized boolean publishImportedEntry(String key, File[] files, long[] lengths)
+            throws IOException {
+        checkNotClosed();
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+        } else if (entry.currentEditor != null) {
+            return false;
+        }
+        // The journal is written once the import ends.
+        for (int i = 0; i < valueCount; i++) {
+            renameTo(files[i], entry.getCleanFile(i), true);
+            files[i] = null;
+            size = size - entry.lengths[i] + lengths[i];
+            entry.lengths[i] = lengths[i];
+        }
+        entry.readable = true;
+        entry.sequenceNumber = nextSequenceNumber++;
+        lruEntries.put(key, entry);
+        return true;
+    }
+
+    /**
+     * Journals the entries published by an import and, once no import is in
+     * progress, deletes the import marker.
+     */
+    private synchronized void endImport(int count) throws IOException {
+        importsInProgress--;
+        if (journalWriter == null) {
+            return; // Closed during the import; the marker stays until the next open.
+        }
+        if (count > 0) {
+            rebuildJournal();
+            redundantOpCount = 0;
             executorService.submit(cleanupCallable);
         }
+        if (importsInProgress == 0) {
+            // Every published entry is in the rebuilt journal.
+            deleteIfExists(importMarkerFile);
+        }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    /** Copies exactly {@code length} bytes from {@code in} to {@code out}. */
+    private static void copy(InputStream in, OutputStream out, long length, byte[] buffer)
+            throws IOException {
+        while (length > 0) {
+            int count = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (count == -1) {
+                throw new EOFException("expected " + length + " more bytes");
+            }
+            out.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+
+    /**
+     * Returns true if the entry named {@code key} exists and is readable.
+     * Unlike {@link #get} this does not open any files or journal a read.
+     */
+    public synchronized boolean contains(String key) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        return entry != null && entry.readable;
+    }
+
+    /**
+     * Returns the value at {@code index} of the entry named {@code key}, or
+     * null if there is no such entry. Unlike {@link #get}, this is not an
+     * access: it doesn't change the LRU order or write a READ record, so it
+     * may be called from {@link EvictionListener#canEvict}.
+     */
+    public synchronized String peekString(String key, int index) throws IOException {
+        checkOpen();
+        validateKey(key);
+        // containsKey() doesn't reorder the access-ordered map.
+        if (!lruEntries.containsKey(key)) {
+            return null;
+        }
+        InputStream in;
+        try {
+            in = new FileInputStream(new File(directory, key + "." + index));
+        } catch (FileNotFoundException e) {
+            return null; // Being created, or deleted manually.
+        }
+        return inputStreamToString(in);
     }
 
     /**
@@ -458,7 +1196,7 @@ public final class DiskLruCache implements Closeable {
     }
 
     private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
+        checkOpen();
         validateKey(key);
         Entry entry = lruEntries.get(key);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
@@ -475,9 +1213,10 @@ public final class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        // The record isn't waited for here: dirty files created before it
+        // reaches the journal are deleted when the cache is opened, and
+        // commit() waits for it before replacing any clean file.
+        editor.dirtyRecord = journal(DIRTY, BinaryJournal.OP_DIRTY, key);
         return editor;
     }
 
@@ -503,12 +1242,21 @@ public final class DiskLruCache implements Closeable {
         executorService.submit(cleanupCallable);
     }
 
+    /**
+     * Sets the listener that receives entries evicted by the size limit, or
+     * null to delete evicted entries immediately.
+     */
+    public synchronized void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
     public synchronized long size() {
+        awaitIndex();
         return size;
     }
 
@@ -552,15 +1300,14 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
+            journalClean(entry);
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journal(REMOVE, BinaryJournal.OP_REMOVE, entry.key);
         }
-        journalWriter.flush();
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -584,7 +1331,7 @@ public final class DiskLruCache implements Closeable {
      * @return true if an entry was removed.
      */
     public synchronized boolean remove(String key) throws IOException {
-        checkNotClosed();
+        checkOpen();
         validateKey(key);
         Entry entry = lruEntries.get(key);
         if (entry == null || entry.currentEditor != null) {
@@ -601,7 +1348,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journal(REMOVE, BinaryJournal.OP_REMOVE, key);
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
@@ -613,24 +1360,66 @@ public final class DiskLruCache implements Closeable {
 
     /** Returns true if this cache has been closed. */
     public synchronized boolean isClosed() {
+        awaitIndex();
         return journalWriter == null;
     }
 
+    /**
+     * Waits until a lazily opened cache has loaded its index. Must be called
+     * with the lock held; the lock is released while waiting.
+     */
+    private void awaitIndex() {
+        boolean interrupted = false;
+        while (loading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Like {@link #checkNotClosed}, but reports a failed lazy open as an
+     * {@code IOException}, which callers of I/O methods already handle.
+     */
+    private void checkOpen() throws IOException {
+        awaitIndex();
+        if (loadError != null) {
+            IOException e = new IOException("failed to open " + directory);
+            e.initCause(loadError);
+            throw e;
+        }
+        checkNotClosed();
+    }
+
     private void checkNotClosed() {
+        awaitIndex();
+        if (loadError != null) {
+            throw new IllegalStateException("failed to open " + directory, loadError);
+        }
         if (journalWriter == null) {
             throw new IllegalStateException("cache is closed");
         }
     }
 
     /** Force buffered operations to the filesystem. */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    public void flush() throws IOException {
+        JournalWriter writer;
+        synchronized (this) {
+            checkOpen();
+            trimToSize();
+            writer = journalWriter;
+        }
+        writer.flush();
     }
 
     /** Closes this cache. Stored values will remain on the filesystem. */
     public synchronized void close() throws IOException {
+        awaitIndex();
         if (journalWriter == null) {
             return; // Already closed.
         }
@@ -646,11 +1435,83 @@ public final class DiskLruCache implements Closeable {
 
     private void trimToSize() throws IOException {
         while (size > maxSize) {
-            Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            if (evictionListener == null) {
+                Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
+                remove(toEvict.getKey());
+                continue;
+            }
+            Entry toEvict = null;
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor == null && evictionListener.canEvict(entry.key, entry.getCleanFiles())) {
+                    toEvict = entry;
+                    break;
+                }
+            }
+            if (toEvict == null) {
+                // Every entry is pinned by the listener or being edited. Pins
+                // keep an entry ahead of others, not over the size limit.
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.currentEditor == null) {
+                        toEvict = entry;
+                        break;
+                    }
+                }
+                if (toEvict == null) {
+                    return; // Every entry is being edited.
+                }
+            }
+            evict(toEvict);
         }
     }
 
+    /**
+     * Drops {@code entry} like {@link #remove}, but moves its files aside so
+     * the eviction listener can read them after the lock is released.
+     */
+    private boolean evict(Entry entry) throws IOException {
+        if (entry.currentEditor != null) {
+            return remove(entry.key);
+        }
+
+        final String key = entry.key;
+        final File[] files = new File[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            File clean = entry.getCleanFile(i);
+            File evicted = entry.getEvictedFile(i);
+            deleteIfExists(evicted);
+            if (clean.exists() && !clean.renameTo(evicted)) {
+                throw new IOException("failed to evict " + clean);
+            }
+            files[i] = evicted;
+            size -= entry.lengths[i];
+            entry.lengths[i] = 0;
+        }
+
+        redundantOpCount++;
+        journal(REMOVE, BinaryJournal.OP_REMOVE, key);
+        lruEntries.remove(key);
+
+        final EvictionListener listener = evictionListener;
+        executorService.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    listener.onEntryEvicted(key, files);
+                } finally {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                return null;
+            }
+        });
+
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+
+        return true;
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -731,6 +1592,8 @@ public final class DiskLruCache implements Closeable {
         private final boolean[] written;
         private boolean hasErrors;
         private boolean committed;
+        /** Number of this edit's DIRTY record in the journal writer. */
+        private long dirtyRecord;
 
         private Editor(Entry entry) {
             this.entry = entry;
@@ -792,7 +1655,7 @@ public final class DiskLruCache implements Closeable {
                     outputStream = new FileOutputStream(dirtyFile);
                 } catch (FileNotFoundException e) {
                     // Attempt to recreate the cache directory.
-                    directory.mkdirs();
+                    tempDirectory.mkdirs();
                     try {
                         outputStream = new FileOutputStream(dirtyFile);
                     } catch (FileNotFoundException e2) {
@@ -820,6 +1683,16 @@ public final class DiskLruCache implements Closeable {
          * edit lock so another edit may be started on the same key.
          */
         public void commit() throws IOException {
+            // Clean files must not change before the journal says the entry is
+            // dirty, otherwise a crash could leave stale lengths for new data.
+            // The DIRTY record usually went out with an earlier batch.
+            JournalWriter writer;
+            synchronized (DiskLruCache.this) {
+                writer = journalWriter;
+            }
+            if (writer != null && !hasErrors) {
+                writer.awaitDurable(dirtyRecord);
+            }
             if (hasErrors) {
                 completeEdit(this, false);
                 remove(entry.key); // The previous entry is stale.
@@ -937,7 +1810,19 @@ public final class DiskLruCache implements Closeable {
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
+            return new File(tempDirectory, key + "." + i);
+        }
+
+        public File[] getCleanFiles() {
+            File[] files = new File[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                files[i] = getCleanFile(i);
+            }
+            return files;
+        }
+
+        public File getEvictedFile(int i) {
+            return new File(tempDirectory, key + "." + i + "." + sequenceNumber + EVICTED_SUFFIX);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of a cache's index and the journal offset it corresponds to.
+ * Opening a cache loads the checkpoint and replays only the journal records
+ * after that offset.
+ *
+ * <p>The file holds a header, the entries as binary journal records (CLEAN,
+ * or DIRTY for entries being edited) in LRU order, and a CRC32 of everything
+ * before it. A checkpoint whose journal offset is past the end of the
+ * journal, or whose checksum doesn't match, is ignored.
+ */
+final class IndexCheckpoint {
+    static final int MAGIC = 0xD15C0C4B;
+    static final int VERSION = 1;
+    /** magic, version, app version, value count, journal format, offset, next sequence, redundant ops, entries */
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 1 + 8 + 8 + 4 + 4;
+    private static final int CRC_LENGTH = 8;
+
+    final boolean binaryJournal;
+    final long journalOffset;
+    final long nextSequenceNumber;
+    final int redundantOpCount;
+    final int entryCount;
+    /** The entries, encoded as binary journal records. */
+    final byte[] records;
+    final int recordsOffset;
+    final int recordsLength;
+
+    IndexCheckpoint(boolean binaryJournal, long journalOffset, long nextSequenceNumber,
+            int redundantOpCount, int entryCount, byte[] records, int recordsOffset, int recordsLength) {
+        this.binaryJournal = binaryJournal;
+        this.journalOffset = journalOffset;
+        this.nextSequenceNumber = nextSequenceNumber;
+        this.redundantOpCount = redundantOpCount;
+        this.entryCount = entryCount;
+        this.records = records;
+        this.recordsOffset = recordsOffset;
+        this.recordsLength = recordsLength;
+    }
+
+    /** Writes this checkpoint to {@code file}. */
+    void writeTo(File file, int appVersion, int valueCount) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[HEADER_LENGTH];
+        Bytes bytes = new Bytes(header);
+        bytes.writeInt(MAGIC);
+        bytes.writeInt(VERSION);
+        bytes.writeInt(appVersion);
+        bytes.writeInt(valueCount);
+        header[bytes.pos++] = (byte) (binaryJournal ? 1 : 0);
+        bytes.writeLong(journalOffset);
+        bytes.writeLong(nextSequenceNumber);
+        bytes.writeInt(redundantOpCount);
+        bytes.writeInt(entryCount);
+        crc.update(header, 0, HEADER_LENGTH);
+        crc.update(records, recordsOffset, recordsLength);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.write(header);
+            out.write(records, recordsOffset, recordsLength);
+            out.writeLong(crc.getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the checkpoint in {@code file}.
+     *
+     * @return null if there is no checkpoint or it is corrupt or for a
+     *     different app version or value count.
+     */
+    static IndexCheckpoint read(File file, int appVersion, int valueCount) {
+        long fileLength = file.length();
+        if (fileLength < HEADER_LENGTH + CRC_LENGTH || fileLength > Integer.MAX_VALUE) {
+            return null;
+        }
+        byte[] data = new byte[(int) fileLength];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            Util.closeQuietly(in);
+        }
+
+        int bodyLength = data.length - CRC_LENGTH;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, bodyLength);
+        Bytes bytes = new Bytes(data);
+        bytes.pos = bodyLength;
+        if (bytes.readLong() != crc.getValue()) {
+            return null;
+        }
+        bytes.pos = 0;
+        if (bytes.readInt() != MAGIC
+                || bytes.readInt() != VERSION
+                || bytes.readInt() != appVersion
+                || bytes.readInt() != valueCount) {
+            return null;
+        }
+        boolean binaryJournal = data[bytes.pos++] != 0;
+        long journalOffset = bytes.readLong();
+        long nextSequenceNumber = bytes.readLong();
+        int redundantOpCount = bytes.readInt();
+        int entryCount = bytes.readInt();
+        return new IndexCheckpoint(binaryJournal, journalOffset, nextSequenceNumber, redundantOpCount,
+                entryCount, data, HEADER_LENGTH, bodyLength - HEADER_LENGTH);
+    }
+
+    /** Returns a reader over the checkpoint's entry records. */
+    BinaryJournal.Reader newReader(int valueCount) {
+        return new BinaryJournal.Reader(
+                new ByteArrayInputStream(records, recordsOffset, recordsLength), valueCount);
+    }
+
+    /** Big-endian ints and longs in a byte array. */
+    private static final class Bytes {
+        final byte[] data;
+        int pos;
+
+        Bytes(byte[] data) {
+            this.data = data;
+        }
+
+        void writeInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                data[pos++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[pos++] = (byte) (value >>> shift);
+            }
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = value << 8 | (data[pos++] & 0xff);
+            }
+            return value;
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = value << 8 | (data[pos++] & 0xff);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jakewharton.disklrucache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends records to a journal on a dedicated thread. Records are buffered in
+ * memory and written as a group with one write and one flush per batch. A
+ * batch is written when it reaches {@link #BATCH_SIZE} bytes, when its oldest
+ * record has waited {@link #BATCH_DELAY_MS}, or when a caller waits for a
+ * record to become durable.
+ *
+ * <p>Records are numbered in the order they are appended. The journal on
+ * disk always holds a prefix of the appended records, and
+ * {@link #appendedBytes} is the journal's length once they are all written.
+ */
+final class JournalWriter implements Closeable {
+    static final int BATCH_SIZE = 8 * 1024;
+    static final long BATCH_DELAY_MS = 100;
+
+    private final Thread thread;
+
+    // All fields are guarded by this.
+    private OutputStream out;
+    private byte[] pending = new byte[BATCH_SIZE];
+    private byte[] spare = new byte[BATCH_SIZE];
+    private int pendingLength;
+    /** {@link System#nanoTime} when the pending batch must be written. */
+    private long batchDeadline;
+    /** Number of records appended so far. */
+    private long appendedCount;
+    /** Number of records written and flushed to {@link #out}. */
+    private long durableCount;
+    /** Number of records a caller is waiting for. */
+    private long requestedCount;
+    /** Length of the journal including all appended records. */
+    private long appendedBytes;
+    private boolean writing;
+    private boolean closed;
+    private IOException error;
+
+    /** @param length the current length of the journal {@code out} appends to. */
+    JournalWriter(OutputStream out, long length) {
+        this.out = out;
+        this.appendedBytes = length;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                writeBatches();
+            }
+        }, "DiskLruCache-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues {@code record} and returns its number, to be passed to
+     * {@link #awaitDurable}.
+     */
+    synchronized long append(String record) throws IOException {
+        int length = record.length();
+        ensureCapacity(length);
+        // Text records are US-ASCII.
+        for (int i = 0; i < length; i++) {
+            pending[pendingLength + i] = (byte) record.charAt(i);
+        }
+        return appended(length);
+    }
+
+    /** Queues an encoded binary record and returns its number. */
+    synchronized long append(byte[] record, int offset, int length) throws IOException {
+        ensureCapacity(length);
+        System.arraycopy(record, offset, pending, pendingLength, length);
+        return appended(length);
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (pendingLength + length > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + length)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+    }
+
+    private long appended(int length) {
+        if (pendingLength == 0) {
+            batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_DELAY_MS);
+            notifyAll(); // Start the batch timer.
+        }
+        pendingLength += length;
+        appendedBytes += length;
+        if (pendingLength >= BATCH_SIZE) {
+            notifyAll();
+        }
+        return ++appendedCount;
+    }
+
+    /** Blocks until the record numbered {@code record} is in the journal. */
+    synchronized void awaitDurable(long record) throws IOException {
+        if (record > requestedCount) {
+            requestedCount = record;
+            notifyAll();
+        }
+        while (durableCount < record) {
+            if (error != null) {
+                throw error;
+            }
+            if (closed && !writing && pendingLength == 0) {
+                return;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Returns the journal offset just after the last appended record. The
+     * record may not be in the journal yet.
+     */
+    synchronized long appendedBytes() {
+        return appendedBytes;
+    }
+
+    /** Blocks until every appended record is in the journal. */
+    void flush() throws IOException {
+        long record;
+        synchronized (this) {
+            record = appendedCount;
+        }
+        awaitDurable(record);
+    }
+
+    /**
+     * Drops the queued records and continues with {@code newOut}. Used after
+     * the journal was rebuilt from the in-memory state, which already contains
+     * everything the queued records describe. {@code length} is the length of
+     * the journal {@code newOut} appends to.
+     */
+    synchronized void reset(OutputStream newOut, long length) throws IOException {
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        Util.closeQuietly(out);
+        out = newOut;
+        pendingLength = 0;
+        appendedBytes = length;
+        durableCount = appendedCount;
+        error = null;
+        notifyAll();
+    }
+
+    /** Writes the queued records, stops the thread and closes the stream. */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            out.close();
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private void writeBatches() {
+        while (true) {
+            byte[] batch;
+            int length;
+            long batchEnd;
+            OutputStream target;
+            synchronized (this) {
+                while (!readyToWrite()) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        if (pendingLength == 0) {
+                            wait();
+                        } else {
+                            long remaining = batchDeadline - System.nanoTime();
+                            wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                batch = pending;
+                length = pendingLength;
+                batchEnd = appendedCount;
+                target = out;
+                pending = spare;
+                pendingLength = 0;
+                writing = true;
+            }
+
+            IOException failure = null;
+            try {
+                target.write(batch, 0, length);
+                target.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            synchronized (this) {
+                writing = false;
+                spare = batch.length == BATCH_SIZE ? batch : new byte[BATCH_SIZE];
+                if (failure != null) {
+                    error = failure;
+                } else if (target == out) {
+                    durableCount = Math.max(durableCount, batchEnd);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean readyToWrite() {
+        if (pendingLength == 0 || error != null) {
+            return false;
+        }
+        return closed
+                || pendingLength >= BATCH_SIZE
+                || requestedCount > durableCount
+                || System.nanoTime() - batchDeadline >= 0;
+    }
+}
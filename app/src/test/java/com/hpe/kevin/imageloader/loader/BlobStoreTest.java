@@ -0,0 +1,228 @@
+package com.hpe.kevin.imageloader.loader;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mRoot;
+    private File mHotDir;
+    private File mColdDir;
+    private TieredDiskCache mCache;
+    private BlobStore mBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("BlobStoreTest", "");
+        assertTrue(mRoot.delete());
+        mHotDir = new File(mRoot, "hot");
+        mColdDir = new File(mRoot, "cold");
+        open(64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.close();
+        deleteRecursively(mRoot);
+    }
+
+    private void open(long coldSize) throws IOException {
+        mCache = TieredDiskCache.open(mHotDir, mColdDir, new DiskCacheSizer(1f, coldSize, coldSize), 1, 2, true,
+                DIRECT);
+        mBlobStore = new BlobStore(mCache);
+        mCache.setEvictionListener(mBlobStore);
+    }
+
+    @Test
+    public void sameContentSharesOneBlob() throws Exception {
+        String first = commitPointer("a", payload(1));
+        String second = commitPointer("b", payload(1));
+        assertEquals(first, second);
+        assertEquals("referrers=a,b", mCache.peekString(first, 1));
+        assertFalse(first.equals(commitPointer("c", payload(2))));
+    }
+
+    @Test
+    public void blobIsPinnedWhileAcquiring() throws Exception {
+        String blobKey = mBlobStore.acquire("a", payload(1), 100);
+        // 引用者的entry还没有提交
+        assertFalse(mBlobStore.canEvict(blobKey, blobFiles(blobKey)));
+        mBlobStore.endAcquire(blobKey);
+        assertTrue(mBlobStore.canEvict(blobKey, blobFiles(blobKey)));
+    }
+
+    @Test
+    public void blobIsPinnedOnlyByLiveReferrers() throws Exception {
+        String blobKey = commitPointer("a", payload(1));
+        assertFalse(mBlobStore.canEvict(blobKey, blobFiles(blobKey)));
+        // 直接删除entry，没有调用release
+        assertTrue(mCache.remove("a"));
+        assertTrue(mBlobStore.canEvict(blobKey, blobFiles(blobKey)));
+    }
+
+    @Test
+    public void referrerPointingElsewhereDoesNotPin() throws Exception {
+        String blobKey = commitPointer("a", payload(1));
+        writePointer("a", "blob_other");
+        assertTrue(mBlobStore.canEvict(blobKey, blobFiles(blobKey)));
+    }
+
+    @Test
+    public void releaseRemovesBlobAfterLastReferrer() throws Exception {
+        String blobKey = commitPointer("a", payload(1));
+        commitPointer("b", payload(1));
+
+        // 引用者仍然指向数据块时不去掉
+        mBlobStore.release(blobKey, "a");
+        assertEquals("referrers=a,b", mCache.peekString(blobKey, 1));
+
+        mCache.remove("a");
+        mBlobStore.release(blobKey, "a");
+        assertEquals("referrers=b", mCache.peekString(blobKey, 1));
+
+        mCache.remove("b");
+        mBlobStore.release(blobKey, "b");
+        assertNull(mCache.peekString(blobKey, 1));
+    }
+
+    @Test
+    public void releaseDuringAcquireKeepsBlob() throws Exception {
+        String blobKey = commitPointer("a", payload(1));
+        mCache.remove("a");
+        // "a"重新提交指向同一个数据块，旧entry的淘汰通知晚到
+        assertEquals(blobKey, mBlobStore.acquire("a", payload(1), 100));
+        mBlobStore.release(blobKey, "a");
+        writePointer("a", blobKey);
+        mBlobStore.endAcquire(blobKey);
+        assertNotNull(mCache.peekString(blobKey, 1));
+        assertFalse(mBlobStore.canEvict(blobKey, blobFiles(blobKey)));
+    }
+
+    @Test
+    public void readingReferrersDoesNotPromoteBlob() throws Exception {
+        String blobKey = null;
+        for (int i = 0; i < 5; i++) {
+            blobKey = commitPointer("p" + i, payload(1));
+        }
+        assertFalse(new File(mHotDir, blobKey + ".0").exists());
+        assertTrue(new File(mColdDir, blobKey + ".0").exists());
+    }
+
+    @Test
+    public void evictingPointerRemovesBlob() throws Exception {
+        mCache.close();
+        open(4 * 1024);
+        String blobKey = commitPointer("a", payload(1));
+        for (int i = 0; i < 6; i++) {
+            writeEntry("filler" + i, new byte[1000], "");
+        }
+        mCache.flush();
+        awaitGone(blobKey);
+        assertTrue(mCache.size() <= 4 * 1024 + 4 * 1024 / 5);
+    }
+
+    @Test
+    public void openDataReadsTheBlob() throws Exception {
+        commitPointer("a", payload(1));
+        DiskLruCache.Snapshot data = openData("a");
+        assertNotNull(data);
+        try {
+            assertEquals(100, data.getLength(0));
+        } finally {
+            data.close();
+        }
+
+        writeEntry("b", payload(2), new ImageMetadata(10, 10, "image/jpeg", true).encode());
+        data = openData("b");
+        assertNotNull(data);
+        data.close();
+    }
+
+    @Test
+    public void openDataReturnsNullWhenBlobIsGone() throws Exception {
+        String blobKey = commitPointer("a", payload(1));
+        // 冷缓存超出大小时可以淘汰还有引用者的数据块
+        assertTrue(mCache.remove(blobKey));
+        assertNull(openData("a"));
+        // 引用者的entry仍然可以读取和替换
+        assertNotNull(mCache.peekString("a", 1));
+        writeEntry("a", payload(2), "");
+    }
+
+    private DiskLruCache.Snapshot openData(String key) throws IOException {
+        DiskLruCache.Snapshot entry = mCache.get(key);
+        assertNotNull(entry);
+        return mBlobStore.openData(entry, ImageMetadata.parse(entry.getString(1)));
+    }
+
+    /** 按ImageLoader.commitEntry的顺序提交一个指向数据块的entry */
+    private String commitPointer(String key, byte[] data) throws IOException {
+        String blobKey = mBlobStore.acquire(key, data, data.length);
+        try {
+            writePointer(key, blobKey);
+        } finally {
+            mBlobStore.endAcquire(blobKey);
+        }
+        return blobKey;
+    }
+
+    private void writePointer(String key, String blobKey) throws IOException {
+        writeEntry(key, new byte[0], new ImageMetadata(10, 10, "image/jpeg", true, null, blobKey).encode());
+    }
+
+    private void writeEntry(String key, byte[] data, String metadata) throws IOException {
+        DiskLruCache.Editor editor = mCache.edit(key);
+        assertNotNull(editor);
+        OutputStream out = editor.newOutputStream(0);
+        out.write(data);
+        out.close();
+        editor.set(1, metadata);
+        editor.commit();
+    }
+
+    private File[] blobFiles(String blobKey) {
+        return new File[] {new File(mColdDir, blobKey + ".0"), new File(mColdDir, blobKey + ".1")};
+    }
+
+    private void awaitGone(String blobKey) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mCache.peekString(blobKey, 1) != null) {
+            assertTrue("blob not removed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] payload(int seed) {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,72 @@
+package com.hpe.kevin.imageloader.loader;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DecodeGovernorTest {
+
+    @Test
+    public void smallDecodeBypassesWaitingLargeOne() throws Exception {
+        DecodeGovernor governor = new DecodeGovernor(100);
+        governor.acquire(60);
+        Thread large = acquireAsync(governor, 60, new AtomicReference<Throwable>());
+        // 放不下的大图在等待，小图可以先执行
+        assertTrue(acquireWithin(governor, 30, 1000));
+        governor.release(30);
+        governor.release(60);
+        large.join(5000);
+        assertFalse(large.isAlive());
+        assertEquals(60, governor.getInFlightBytes());
+    }
+
+    @Test
+    public void interruptedStarvingDecodeReleasesItsReservation() throws Exception {
+        DecodeGovernor governor = new DecodeGovernor(100);
+        governor.acquire(60);
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread large = acquireAsync(governor, 60, error);
+        // 超过饥饿时间后大图预留了额度，小图不能再插队
+        Thread.sleep(1200);
+        assertFalse(acquireWithin(governor, 30, 200));
+
+        large.interrupt();
+        large.join(5000);
+        assertTrue(error.get() instanceof InterruptedException);
+        // 预留已经撤销，小图可以执行
+        assertTrue(acquireWithin(governor, 30, 1000));
+        assertEquals(90, governor.getInFlightBytes());
+    }
+
+    private static Thread acquireAsync(final DecodeGovernor governor, final long bytes,
+                                       final AtomicReference<Throwable> error) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    governor.acquire(bytes);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /** 在另一个线程中申请额度，超时没有放行时中断它并返回false */
+    private static boolean acquireWithin(DecodeGovernor governor, long bytes, long timeoutMs)
+            throws InterruptedException {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread thread = acquireAsync(governor, bytes, error);
+        thread.join(timeoutMs);
+        if (thread.isAlive()) {
+            thread.interrupt();
+            thread.join();
+            return false;
+        }
+        return error.get() == null;
+    }
+}
@@ -0,0 +1,177 @@
+package com.hpe.kevin.imageloader.loader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ExifThumbnailReaderTest {
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    @Test
+    public void readsOrientationAndThumbnail() {
+        byte[] thumbnail = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, (byte) 0xFF, (byte) 0xD9};
+        // TIFF头8字节，IFD0有1个tag(18字节)，IFD1有2个tag(30字节)，缩略图紧跟在IFD1后面
+        Tiff tiff = new Tiff()
+                .ifdHeader(8, 1).tag(TAG_ORIENTATION, TYPE_SHORT, ExifThumbnailReader.ORIENTATION_ROTATE_90).next(26)
+                .ifdHeader(26, 2).tag(TAG_THUMBNAIL_OFFSET, TYPE_LONG, 56).tag(TAG_THUMBNAIL_LENGTH, TYPE_LONG,
+                        thumbnail.length).next(0)
+                .raw(thumbnail);
+        byte[] jpeg = jpegWithExif(tiff.bytes());
+
+        ExifThumbnailReader.ExifInfo info = ExifThumbnailReader.read(jpeg, 0, jpeg.length);
+
+        assertNotNull(info);
+        assertEquals(ExifThumbnailReader.ORIENTATION_ROTATE_90, info.orientation);
+        assertTrue(info.hasThumbnail());
+        assertEquals(thumbnail.length, info.thumbnailLength);
+        assertEquals((byte) 0xD8, jpeg[info.thumbnailOffset + 1]);
+        assertEquals((byte) 0xD9, jpeg[info.thumbnailOffset + info.thumbnailLength - 1]);
+    }
+
+    @Test
+    public void rejectsThumbnailLengthThatOverflows() {
+        Tiff tiff = new Tiff()
+                .ifdHeader(8, 0).next(14)
+                .ifdHeader(14, 2).tag(TAG_THUMBNAIL_OFFSET, TYPE_LONG, 48)
+                .tag(TAG_THUMBNAIL_LENGTH, TYPE_LONG, 0x7FFFFFFF).next(0)
+                .raw(new byte[4]);
+        byte[] jpeg = jpegWithExif(tiff.bytes());
+
+        ExifThumbnailReader.ExifInfo info = ExifThumbnailReader.read(jpeg, 0, jpeg.length);
+
+        assertNotNull(info);
+        assertFalse(info.hasThumbnail());
+    }
+
+    @Test
+    public void rejectsThumbnailOffsetThatOverflows() {
+        Tiff tiff = new Tiff()
+                .ifdHeader(8, 0).next(14)
+                .ifdHeader(14, 2).tag(TAG_THUMBNAIL_OFFSET, TYPE_LONG, 0x7FFFFFF0)
+                .tag(TAG_THUMBNAIL_LENGTH, TYPE_LONG, 0x20).next(0);
+        byte[] jpeg = jpegWithExif(tiff.bytes());
+
+        ExifThumbnailReader.ExifInfo info = ExifThumbnailReader.read(jpeg, 0, jpeg.length);
+
+        assertNotNull(info);
+        assertFalse(info.hasThumbnail());
+    }
+
+    @Test
+    public void ignoresIfdOffsetsOutsideTheSegment() {
+        // IFD0的偏移会在相加时溢出，IFD1的偏移为负数
+        byte[] overflowing = jpegWithExif(new Tiff().ifd0Offset(0x7FFFFFFF).bytes());
+        ExifThumbnailReader.ExifInfo info = ExifThumbnailReader.read(overflowing, 0, overflowing.length);
+        assertNotNull(info);
+        assertEquals(ExifThumbnailReader.ORIENTATION_UNDEFINED, info.orientation);
+
+        byte[] negative = jpegWithExif(new Tiff().ifdHeader(8, 0).next(0xFFFFFFF0).bytes());
+        info = ExifThumbnailReader.read(negative, 0, negative.length);
+        assertNotNull(info);
+        assertFalse(info.hasThumbnail());
+    }
+
+    @Test
+    public void ignoresIfdWithTooManyEntries() {
+        byte[] jpeg = jpegWithExif(new Tiff().ifdHeader(8, 0xFFFF).bytes());
+        ExifThumbnailReader.ExifInfo info = ExifThumbnailReader.read(jpeg, 0, jpeg.length);
+        assertNotNull(info);
+        assertFalse(info.hasThumbnail());
+    }
+
+    @Test
+    public void returnsNullWithoutExif() {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 0};
+        assertNull(ExifThumbnailReader.read(png, 0, png.length));
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2};
+        assertNull(ExifThumbnailReader.read(jpeg, 0, jpeg.length));
+    }
+
+    private static byte[] jpegWithExif(byte[] tiff) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        out.write(0xFF);
+        out.write(0xE1);
+        int segmentLength = 2 + 6 + tiff.length;
+        out.write(segmentLength >> 8);
+        out.write(segmentLength);
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        out.write(tiff, 0, tiff.length);
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    /** 按大端序("MM")拼TIFF数据 */
+    private static class Tiff {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private boolean mHeaderWritten;
+
+        Tiff ifd0Offset(int offset) {
+            mOut.write('M');
+            mOut.write('M');
+            writeShort(0x002A);
+            writeInt(offset);
+            mHeaderWritten = true;
+            return this;
+        }
+
+        Tiff ifdHeader(int offset, int count) {
+            if (!mHeaderWritten) {
+                ifd0Offset(offset);
+            }
+            assertEquals(offset, mOut.size());
+            writeShort(count);
+            return this;
+        }
+
+        Tiff tag(int tag, int type, int value) {
+            writeShort(tag);
+            writeShort(type);
+            writeInt(1);
+            if (type == TYPE_SHORT) {
+                writeShort(value);
+                writeShort(0);
+            } else {
+                writeInt(value);
+            }
+            return this;
+        }
+
+        Tiff next(int offset) {
+            writeInt(offset);
+            return this;
+        }
+
+        Tiff raw(byte[] bytes) {
+            mOut.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] bytes() {
+            return mOut.toByteArray();
+        }
+
+        private void writeShort(int value) {
+            mOut.write(value >> 8);
+            mOut.write(value);
+        }
+
+        private void writeInt(int value) {
+            writeShort(value >>> 16);
+            writeShort(value & 0xFFFF);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.hpe.kevin.imageloader.loader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HotSetTrackerTest {
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("HotSetTrackerTest", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+        mFile = new File(mDir, "hotset");
+    }
+
+    @After
+    public void tearDown() {
+        BlobStoreTest.deleteRecursively(mDir);
+    }
+
+    @Test
+    public void mostRecentlyShownComeFirst() throws Exception {
+        HotSetTracker tracker = new HotSetTracker(3);
+        tracker.record("a", 1, 1);
+        tracker.record("b", 2, 2);
+        tracker.record("c", 3, 3);
+        tracker.record("a", 4, 4);
+        // 记录满了，最久没有显示的b被替换
+        tracker.record("d", 5, 5);
+        tracker.save(mFile);
+
+        List<HotSetTracker.Target> targets = HotSetTracker.load(mFile);
+        assertEquals("[d 5x5, a 4x4, c 3x3]", toString(targets));
+    }
+
+    @Test
+    public void matchesLinkedHashMap() throws Exception {
+        final int maxEntries = 16;
+        HotSetTracker tracker = new HotSetTracker(maxEntries);
+        Map<String, String> expected = new LinkedHashMap<String, String>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String key = "k" + random.nextInt(40);
+            int size = random.nextInt(100);
+            tracker.record(key, size, size);
+            expected.put(key, key + " " + size + "x" + size);
+        }
+        tracker.save(mFile);
+
+        List<String> expectedOrder = new ArrayList<String>(expected.values());
+        Collections.reverse(expectedOrder);
+        assertEquals(expectedOrder.toString(), toString(HotSetTracker.load(mFile)));
+    }
+
+    private static String toString(List<HotSetTracker.Target> targets) {
+        List<String> strings = new ArrayList<String>();
+        for (HotSetTracker.Target target : targets) {
+            strings.add(target.key + " " + target.width + "x" + target.height);
+        }
+        return strings.toString();
+    }
+}
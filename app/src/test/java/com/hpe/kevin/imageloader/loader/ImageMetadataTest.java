@@ -0,0 +1,45 @@
+package com.hpe.kevin.imageloader.loader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ImageMetadataTest {
+
+    @Test
+    public void transposedOrientationSurvivesEncoding() {
+        // 4000x3000的像素旋转90度显示为3000x4000
+        ImageMetadata metadata = new ImageMetadata(3000, 4000, "image/jpeg", true, null, null,
+                ExifThumbnailReader.ORIENTATION_ROTATE_90);
+        ImageMetadata parsed = ImageMetadata.parse(metadata.encode());
+
+        assertNotNull(parsed);
+        assertEquals(3000, parsed.width);
+        assertEquals(4000, parsed.height);
+        assertEquals(ExifThumbnailReader.ORIENTATION_ROTATE_90, parsed.orientation);
+        assertEquals(4000, parsed.encodedWidth());
+        assertEquals(3000, parsed.encodedHeight());
+        assertEquals(ExifThumbnailReader.ORIENTATION_ROTATE_90, parsed.withBlobKey("blob").orientation);
+    }
+
+    @Test
+    public void rotate180KeepsEncodedSize() {
+        ImageMetadata metadata = new ImageMetadata(4000, 3000, "image/jpeg", true, null, null,
+                ExifThumbnailReader.ORIENTATION_ROTATE_180);
+        assertEquals(4000, metadata.encodedWidth());
+        assertEquals(3000, metadata.encodedHeight());
+    }
+
+    @Test
+    public void metadataWithoutOrientationUsesEncodedSize() {
+        // 旧版本写入的元数据没有orientation
+        ImageMetadata parsed = ImageMetadata.parse("width=4000\nheight=3000\nmime=image/jpeg\nopaque=1\n");
+
+        assertNotNull(parsed);
+        assertEquals("image/jpeg", parsed.mimeType);
+        assertEquals(ExifThumbnailReader.ORIENTATION_UNDEFINED, parsed.orientation);
+        assertEquals(4000, parsed.encodedWidth());
+        assertEquals(3000, parsed.encodedHeight());
+    }
+}
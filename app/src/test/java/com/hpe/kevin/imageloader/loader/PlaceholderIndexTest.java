@@ -0,0 +1,97 @@
+package com.hpe.kevin.imageloader.loader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaceholderIndexTest {
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("PlaceholderIndexTest", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+        mFile = new File(mDir, "placeholders");
+    }
+
+    @After
+    public void tearDown() {
+        BlobStoreTest.deleteRecursively(mDir);
+    }
+
+    @Test
+    public void placeholdersSurviveRestart() throws Exception {
+        PlaceholderIndex index = new PlaceholderIndex(8);
+        index.put("a", placeholder(1));
+        index.put("b", placeholder(2));
+        index.save(mFile);
+
+        PlaceholderIndex restarted = new PlaceholderIndex(8);
+        restarted.load(mFile);
+        assertArrayEquals(placeholder(1), restarted.get("a"));
+        assertArrayEquals(placeholder(2), restarted.get("b"));
+        assertNull(restarted.get("c"));
+    }
+
+    @Test
+    public void recordedPlaceholdersWinOverLoadedOnes() throws Exception {
+        PlaceholderIndex index = new PlaceholderIndex(2);
+        index.put("a", placeholder(1));
+        index.put("b", placeholder(2));
+        index.save(mFile);
+
+        PlaceholderIndex restarted = new PlaceholderIndex(2);
+        restarted.put("b", placeholder(3));
+        restarted.put("c", placeholder(4));
+        restarted.load(mFile);
+        // 已经记录的更新，文件中旧的占位图排在前面，超出个数时先被淘汰
+        assertArrayEquals(placeholder(3), restarted.get("b"));
+        assertArrayEquals(placeholder(4), restarted.get("c"));
+        assertNull(restarted.get("a"));
+    }
+
+    @Test
+    public void truncatedFileIsIgnored() throws Exception {
+        PlaceholderIndex index = new PlaceholderIndex(8);
+        index.put("a", placeholder(1));
+        index.put("b", placeholder(2));
+        index.save(mFile);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+
+        PlaceholderIndex restarted = new PlaceholderIndex(8);
+        restarted.load(mFile);
+        assertNull(restarted.get("a"));
+        assertNull(restarted.get("b"));
+    }
+
+    @Test
+    public void missingFileIsIgnored() {
+        PlaceholderIndex index = new PlaceholderIndex(8);
+        index.load(mFile);
+        assertNull(index.get("a"));
+    }
+
+    private static byte[] placeholder(int seed) {
+        byte[] data = new byte[2 + 2 * 2 * 2];
+        data[0] = 2;
+        data[1] = 2;
+        for (int i = 2; i < data.length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+}
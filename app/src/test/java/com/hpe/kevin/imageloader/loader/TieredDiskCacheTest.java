@@ -0,0 +1,132 @@
+package com.hpe.kevin.imageloader.loader;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class TieredDiskCacheTest {
+    private final List<Runnable> mTasks = new ArrayList<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    private File mRoot;
+    private File mHotDir;
+    private File mColdDir;
+    private TieredDiskCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("TieredDiskCacheTest", "");
+        assertTrue(mRoot.delete());
+        mHotDir = new File(mRoot, "hot");
+        mColdDir = new File(mRoot, "cold");
+        mCache = TieredDiskCache.open(mHotDir, mColdDir, new DiskCacheSizer(1f, 64 * 1024, 64 * 1024), 1, 2, false,
+                mExecutor);
+        runTasks();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.close();
+        BlobStoreTest.deleteRecursively(mRoot);
+    }
+
+    @Test
+    public void repeatedReadsPromote() throws Exception {
+        set("a", "v1");
+        assertEquals("v1", read("a"));
+        assertEquals("v1", read("a"));
+        runTasks();
+        assertTrue(new File(mHotDir, "a.0").exists());
+        assertFalse(new File(mColdDir, "a.0").exists());
+        // 提升后在热点层中修改
+        set("a", "v2");
+        assertEquals("v2", read("a"));
+        assertFalse(new File(mColdDir, "a.0").exists());
+    }
+
+    @Test
+    public void editInProgressIsNotLostToPromotion() throws Exception {
+        set("a", "v1");
+        read("a");
+        read("a");
+        // 提升已经排队，执行前冷数据层开始修改
+        DiskLruCache.Editor editor = mCache.edit("a");
+        runTasks();
+        editor.set(0, "v2");
+        editor.set(1, "m");
+        editor.commit();
+        assertEquals("v2", read("a"));
+        assertFalse(new File(mHotDir, "a.0").exists());
+    }
+
+    @Test
+    public void coldCommitBetweenHotEvictionAndDemotionWins() throws Exception {
+        set("a", "v1");
+        read("a");
+        read("a");
+        runTasks();
+        assertTrue(new File(mHotDir, "a.0").exists());
+
+        // 持有移动的锁，降级在淘汰之后等待
+        synchronized (mCache.mMovingKeys) {
+            // 热点层最大为1字节，"a"被淘汰
+            mCache.updateMaxSize(new DiskCacheSizer(1f, 5, 5));
+            awaitDeleted(new File(mHotDir, "a.0"));
+            // 两层都没有命中，重新下载后写入冷数据层
+            set("a", "v2");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mCache.getDroppedDemotionCount() == 0) {
+            assertTrue("demotion not dropped", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals("v2", read("a"));
+    }
+
+    private static void awaitDeleted(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.exists()) {
+            assertTrue(file + " not deleted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void set(String key, String value) throws IOException {
+        DiskLruCache.Editor editor = mCache.edit(key);
+        assertNotNull(editor);
+        editor.set(0, value);
+        editor.set(1, "m");
+        editor.commit();
+    }
+
+    private String read(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(key);
+        assertNotNull(snapshot);
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.hpe.kevin.imageloader.loader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLfuCacheTest {
+
+    @Test public void peekDoesNotRecordAccess() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(10, 1, 16);
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.peek("a"));
+        assertNull(cache.peek("b"));
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test public void putsAndPeeksDoNotOutrankRecordedAccess() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(10, 1, 16);
+        fill(cache, 10);
+        // cold先进入window，把k9挤到probation
+        cache.put("cold", 0);
+        for (int i = 0; i < 5; i++) {
+            cache.put("cold", i);
+            cache.peek("cold");
+        }
+        // pusher把cold挤到probation，cold从来没有被get过，不能挤掉请求过一次的k0
+        cache.get("pusher");
+        cache.put("pusher", 0);
+
+        assertNull(cache.peek("cold"));
+        assertNotNull(cache.peek("k0"));
+        assertNotNull(cache.peek("pusher"));
+        assertEquals(10, cache.size());
+    }
+
+    @Test public void frequentCandidateIsAdmitted() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(10, 1, 16);
+        fill(cache, 10);
+        cache.put("hot", 0);
+        for (int i = 0; i < 3; i++) {
+            cache.get("hot");
+        }
+        cache.get("pusher");
+        cache.put("pusher", 0);
+
+        assertNotNull(cache.peek("hot"));
+        assertEquals(10, cache.size());
+    }
+
+    @Test public void scanDoesNotFlushProtectedEntries() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(20, 1, 64);
+        for (int i = 0; i < 5; i++) {
+            request(cache, "hot" + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5; i++) {
+                request(cache, "hot" + i);
+            }
+        }
+        // 一次快速滑动，每张冷图片只请求一次
+        for (int i = 0; i < 100; i++) {
+            request(cache, "scan" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull("hot" + i, cache.peek("hot" + i));
+        }
+        assertTrue(cache.size() <= 20);
+    }
+
+    @Test public void evictionsAreReported() {
+        final List<String> evicted = new ArrayList<String>();
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(4, 1, 16) {
+            @Override
+            protected void entryRemoved(boolean wasEvicted, String key, Integer oldValue, Integer newValue) {
+                if (wasEvicted) {
+                    evicted.add(key);
+                }
+            }
+        };
+        fill(cache, 6);
+        assertEquals(2, evicted.size());
+        assertEquals(2, cache.evictionCount());
+        assertEquals(4, cache.size());
+        for (String key : evicted) {
+            assertNull(cache.peek(key));
+        }
+        cache.evictAll();
+        assertEquals(6, evicted.size());
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void onlyHitMainEntriesAreReportedAfterEviction() {
+        final List<String> afterHit = new ArrayList<String>();
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(3, 1, 16) {
+            @Override
+            protected void entryEvictedAfterHit(String key, Integer value) {
+                afterHit.add(key);
+            }
+        };
+        request(cache, "a");
+        request(cache, "b");
+        request(cache, "c");
+        // a和b晋升到protected，protected放不下时a降级回probation
+        cache.get("a");
+        cache.get("b");
+        // 频率不够的新entry在准入时被拒绝
+        request(cache, "d");
+        request(cache, "e");
+        assertTrue(afterHit.isEmpty());
+        assertTrue(cache.evictionCount() > 0);
+
+        for (int i = 0; i < 3; i++) {
+            cache.get("f");
+        }
+        cache.put("f", 1);
+        request(cache, "g");
+        assertEquals("[a]", afterHit.toString());
+
+        // 调整大小和清空缓存不算
+        cache.resize(1);
+        cache.evictAll();
+        assertEquals("[a]", afterHit.toString());
+    }
+
+    @Test public void entryLargerThanSegmentIsCached() {
+        final List<String> removed = new ArrayList<String>();
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(400, 4, 64) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {
+                removed.add(key + "=" + oldValue + "->" + newValue);
+            }
+        };
+        // 每段100，大图放到共享的LRU区中
+        cache.put("big", 150);
+        assertEquals(Integer.valueOf(150), cache.get("big"));
+        assertEquals(1, cache.hitCount());
+        for (int i = 0; i < 100; i++) {
+            request(cache, "k" + i, 10);
+            assertTrue(cache.size() <= 400);
+        }
+        assertEquals(Integer.valueOf(150), cache.peek("big"));
+
+        // 大图区最多占一半，最久未使用的大图被淘汰
+        cache.put("big2", 150);
+        assertNull(cache.peek("big"));
+        assertEquals(Integer.valueOf(150), cache.peek("big2"));
+        assertTrue(removed.contains("big=150->null"));
+        assertTrue(cache.size() <= 400);
+
+        // 变小后回到分段中(没有被get过，准入时可能被拒绝)，大图区的旧value被替换
+        assertEquals(Integer.valueOf(150), cache.put("big2", 20));
+        assertTrue(removed.contains("big2=150->20"));
+        assertFalse(Integer.valueOf(150).equals(cache.peek("big2")));
+        cache.remove("big2");
+        assertNull(cache.peek("big2"));
+
+        cache.put("big3", 150);
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.peek("big3"));
+    }
+
+    @Test public void entryLargerThanHalfTheCacheIsNotCached() {
+        final List<String> removed = new ArrayList<String>();
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(4, 1, 16) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {
+                removed.add(key + "=" + oldValue + "->" + newValue);
+            }
+        };
+        cache.put("a", 1);
+        cache.put("b", 1);
+        // 只有一段，容量为4，大图区最多为2
+        assertNull(cache.put("big", 5));
+        assertNull(cache.peek("big"));
+        assertEquals(Integer.valueOf(1), cache.peek("a"));
+        assertEquals(Integer.valueOf(1), cache.peek("b"));
+        assertEquals(2, cache.size());
+        assertTrue(removed.isEmpty());
+
+        // 旧的value不能留在缓存中
+        assertEquals(Integer.valueOf(1), cache.put("a", 5));
+        assertNull(cache.peek("a"));
+        assertEquals(1, cache.size());
+        assertEquals(1, removed.size());
+        assertEquals("a=1->null", removed.get(0));
+    }
+
+    @Test public void segmentsSplitTheCapacity() {
+        TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(400, 4, 512);
+        for (int i = 0; i < 1000; i++) {
+            request(cache, "k" + i);
+        }
+        assertTrue(cache.size() <= 400);
+        assertFalse(cache.size() == 0);
+    }
+
+    /** 每个key请求一次，未命中时加载 */
+    private static void fill(TinyLfuCache<String, Integer> cache, int count) {
+        for (int i = 0; i < count; i++) {
+            request(cache, "k" + i);
+        }
+    }
+
+    private static void request(TinyLfuCache<String, Integer> cache, String key) {
+        request(cache, key, 1);
+    }
+
+    private static void request(TinyLfuCache<String, Integer> cache, String key, int value) {
+        if (cache.get(key) == null) {
+            cache.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.jakewharton.disklrucache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public final class BinaryJournalTest {
+    private static final String MD5_KEY = "0123456789abcdef0123456789abcdef";
+    private static final String RENDITION_KEY = MD5_KEY + "_200x100";
+    private static final String UPPERCASE_KEY = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Test public void recordsRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryJournal.writeHeader(out, 100, 2);
+        BinaryJournal.RecordBuffer buffer = new BinaryJournal.RecordBuffer();
+        write(out, buffer.record(BinaryJournal.OP_DIRTY, MD5_KEY));
+        write(out, buffer.clean(MD5_KEY, new long[] {0, 1L << 40}, 1));
+        write(out, buffer.clean(RENDITION_KEY, new long[] {127, 128}, Long.MAX_VALUE));
+        write(out, buffer.record(BinaryJournal.OP_READ, UPPERCASE_KEY));
+        write(out, buffer.record(BinaryJournal.OP_REMOVE, ""));
+        byte[] journal = out.toByteArray();
+        assertTrue(BinaryJournal.isBinary(journal, journal.length));
+
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(new ByteArrayInputStream(journal), 2);
+        reader.readHeader(100, 2);
+        assertRecord(reader, BinaryJournal.OP_DIRTY, MD5_KEY);
+        assertRecord(reader, BinaryJournal.OP_CLEAN, MD5_KEY);
+        assertArrayEquals(new long[] {0, 1L << 40}, reader.lengths);
+        assertEquals(1, reader.sequenceNumber);
+        assertRecord(reader, BinaryJournal.OP_CLEAN, RENDITION_KEY);
+        assertArrayEquals(new long[] {127, 128}, reader.lengths);
+        assertEquals(Long.MAX_VALUE, reader.sequenceNumber);
+        // Only lowercase hex digits are packed, so the key keeps its case.
+        assertRecord(reader, BinaryJournal.OP_READ, UPPERCASE_KEY);
+        assertRecord(reader, BinaryJournal.OP_REMOVE, "");
+        assertFalse(reader.next());
+        assertFalse(reader.truncated);
+    }
+
+    @Test public void md5KeysArePacked() {
+        BinaryJournal.RecordBuffer buffer = new BinaryJournal.RecordBuffer();
+        assertEquals(1 + 16, buffer.record(BinaryJournal.OP_DIRTY, MD5_KEY).length);
+        assertEquals(1 + 1 + RENDITION_KEY.length(), buffer.record(BinaryJournal.OP_DIRTY, RENDITION_KEY).length);
+    }
+
+    @Test public void truncatedTailEndsTheJournal() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryJournal.writeHeader(out, 100, 2);
+        BinaryJournal.RecordBuffer buffer = new BinaryJournal.RecordBuffer();
+        write(out, buffer.clean(MD5_KEY, new long[] {1, 2}, 1));
+        write(out, buffer.clean(RENDITION_KEY, new long[] {300, 400}, 2));
+        byte[] journal = out.toByteArray();
+
+        // Every cut inside the last record, including one in the middle of a varint.
+        for (int cut = 1; cut < buffer.length; cut++) {
+            BinaryJournal.Reader reader = new BinaryJournal.Reader(
+                    new ByteArrayInputStream(journal, 0, journal.length - cut), 2);
+            reader.readHeader(100, 2);
+            assertRecord(reader, BinaryJournal.OP_CLEAN, MD5_KEY);
+            assertFalse(reader.next());
+            assertTrue("cut " + cut, reader.truncated);
+        }
+    }
+
+    @Test public void rejectsOtherHeaders() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryJournal.writeHeader(out, 100, 2);
+        byte[] journal = out.toByteArray();
+        assertHeaderRejected(journal, 101, 2);
+        assertHeaderRejected(journal, 100, 1);
+        byte[] text = (DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1 + "\n100\n2\n\n").getBytes("US-ASCII");
+        assertFalse(BinaryJournal.isBinary(text, text.length));
+        assertHeaderRejected(text, 100, 2);
+    }
+
+    @Test public void rejectsUnknownOp() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryJournal.writeHeader(out, 100, 2);
+        write(out, new BinaryJournal.RecordBuffer().record(9, "a"));
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(new ByteArrayInputStream(out.toByteArray()), 2);
+        reader.readHeader(100, 2);
+        try {
+            reader.next();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, BinaryJournal.RecordBuffer buffer) {
+        out.write(buffer.bytes, 0, buffer.length);
+    }
+
+    private static void assertRecord(BinaryJournal.Reader reader, int op, String key) throws IOException {
+        assertTrue(reader.next());
+        assertEquals(op, reader.op);
+        assertEquals(key, reader.key);
+    }
+
+    private static void assertHeaderRejected(byte[] journal, int appVersion, int valueCount) {
+        BinaryJournal.Reader reader = new BinaryJournal.Reader(new ByteArrayInputStream(journal), valueCount);
+        try {
+            reader.readHeader(appVersion, valueCount);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.jakewharton.disklrucache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public final class DiskLruCacheTest {
+    private File cacheDir;
+    private DiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        cacheDir = File.createTempFile("DiskLruCacheTest", "");
+        assertTrue(cacheDir.delete());
+        assertTrue(cacheDir.mkdirs());
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE);
+    }
+
+    @After public void tearDown() throws Exception {
+        cache.close();
+        Util.deleteContents(cacheDir);
+        cacheDir.delete();
+    }
+
+    @Test public void peekStringDoesNotChangeLruOrder() throws Exception {
+        set("a", "aa", "aaa");
+        set("b", "bb", "bbb");
+        assertEquals("aaa", cache.peekString("a", 1));
+        assertNull(cache.peekString("c", 1));
+        cache.setMaxSize(5);
+        awaitExecutor();
+        // "a" was peeked, not read, so it is still the least recently used.
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test public void listenerVetoesOnlyReorderEviction() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        cache.setEvictionListener(new DiskLruCache.EvictionListener() {
+            @Override public boolean canEvict(String key, File[] files) {
+                return !key.equals("a");
+            }
+
+            @Override public void onEntryEvicted(String key, File[] files) {
+            }
+        });
+        cache.setMaxSize(4);
+        awaitExecutor();
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test public void sizeLimitHoldsWhenEveryEntryIsVetoed() throws Exception {
+        set("a", "a", "a");
+        set("b", "b", "b");
+        set("c", "c", "c");
+        cache.setEvictionListener(new DiskLruCache.EvictionListener() {
+            @Override public boolean canEvict(String key, File[] files) {
+                return false;
+            }
+
+            @Override public void onEntryEvicted(String key, File[] files) {
+            }
+        });
+        cache.setMaxSize(2);
+        awaitExecutor();
+        assertTrue(cache.size() <= 2);
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test public void snapshotFromReplayedTextJournalGoesStale() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, false);
+        DiskLruCache.Snapshot snapshot = cache.get("a");
+        set("a", "b", "b");
+        // The edit committed after opening must change the sequence number
+        // the replayed entry started with.
+        assertNull(snapshot.edit());
+        snapshot.close();
+    }
+
+    @Test public void getNeverMixesValuesOfDifferentEdits() throws Exception {
+        set("a", "0", "0");
+        cache.close();
+        // Replay a text journal so the first commits race against a replayed entry.
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, false);
+        final AtomicReference<String> torn = new AtomicReference<String>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[2];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        while (!done.get() && torn.get() == null) {
+                            DiskLruCache.Snapshot snapshot = cache.get("a");
+                            if (snapshot == null) {
+                                torn.set("missing");
+                                return;
+                            }
+                            String value0 = snapshot.getString(0);
+                            String value1 = snapshot.getString(1);
+                            snapshot.close();
+                            if (!value0.equals(value1)) {
+                                torn.set(value0 + " != " + value1);
+                            }
+                        }
+                    } catch (IOException e) {
+                        torn.set(e.toString());
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        try {
+            for (int i = 1; i <= 500 && torn.get() == null; i++) {
+                String value = Integer.toString(i);
+                set("a", value, value);
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull(torn.get());
+    }
+
+    @Test public void openSweepsOnlyAfterInterruptedImport() throws Exception {
+        set("a", "a", "a");
+        cache.close();
+        File stray = new File(cacheDir, "stray.0");
+        writeFile(stray, "stray");
+        File temp = new File(new File(cacheDir, DiskLruCache.TEMP_DIRECTORY), "b.0");
+        writeFile(temp, "dirty");
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE);
+        // The temp directory is always emptied; the directory itself is only
+        // listed when an import left its marker behind.
+        assertFalse(temp.exists());
+        assertTrue(stray.exists());
+
+        cache.close();
+        writeFile(new File(cacheDir, DiskLruCache.IMPORT_MARKER_FILE), "");
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE);
+        assertFalse(stray.exists());
+        assertFalse(new File(cacheDir, DiskLruCache.IMPORT_MARKER_FILE).exists());
+        assertEquals("a", cache.get("a").getString(1));
+    }
+
+    @Test public void importRemovesItsMarker() throws Exception {
+        set("a", "a", "aa");
+        set("b", "b", "bb");
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(2, cache.exportTo(archive));
+
+        File otherDir = new File(cacheDir.getPath() + "-import");
+        DiskLruCache other = DiskLruCache.open(otherDir, 100, 2, Integer.MAX_VALUE);
+        try {
+            assertEquals(2, other.importFrom(new ByteArrayInputStream(archive.toByteArray())));
+            assertFalse(new File(otherDir, DiskLruCache.IMPORT_MARKER_FILE).exists());
+            assertEquals("bb", other.get("b").getString(1));
+            other.close();
+            other = DiskLruCache.open(otherDir, 100, 2, Integer.MAX_VALUE);
+            assertEquals("aa", other.get("a").getString(1));
+        } finally {
+            other.close();
+            Util.deleteContents(otherDir);
+            otherDir.delete();
+        }
+    }
+
+    @Test public void importDoesNotHoldTheLockWhileCopying() throws Exception {
+        set("a", "a", "aa");
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        cache.exportTo(archive);
+        final byte[] bytes = archive.toByteArray();
+        cache.remove("a");
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        // Serves everything but the last byte, then blocks in the middle of the copy.
+        final InputStream in = new InputStream() {
+            int pos;
+
+            @Override public int read() throws IOException {
+                if (pos == bytes.length - 1) {
+                    blocked.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                }
+                return pos < bytes.length ? bytes[pos++] & 0xff : -1;
+            }
+        };
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread importer = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    result.set(cache.importFrom(in));
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        });
+        importer.start();
+        try {
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            // Would block until the import ends if it held the lock.
+            set("b", "b", "bb");
+            assertEquals("bb", cache.get("b").getString(1));
+            assertTrue(new File(cacheDir, DiskLruCache.IMPORT_MARKER_FILE).exists());
+        } finally {
+            resume.countDown();
+            importer.join();
+        }
+        assertEquals(1, result.get());
+        assertEquals("aa", cache.get("a").getString(1));
+        assertFalse(new File(cacheDir, DiskLruCache.IMPORT_MARKER_FILE).exists());
+    }
+
+    @Test public void failedLazyOpenKeepsTheCause() throws Exception {
+        // A regular file where the directory should be.
+        File notADirectory = new File(cacheDir, "file");
+        writeFile(notADirectory, "");
+        DiskLruCache lazy = DiskLruCache.openLazily(notADirectory, 100, 2, Integer.MAX_VALUE, true);
+        try {
+            lazy.get("a");
+            fail();
+        } catch (IOException expected) {
+            assertNotNull(expected.getCause());
+        }
+        try {
+            lazy.contains("a");
+            fail();
+        } catch (IllegalStateException expected) {
+            assertNotNull(expected.getCause());
+        }
+        assertTrue(lazy.isClosed());
+    }
+
+    @Test public void commitReturnsOnceItsDirtyRecordIsInTheJournal() throws Exception {
+        set("a", "a", "aa");
+        // Read while the cache is open: only records commit waited for are on disk.
+        String journal = Util.readFully(new InputStreamReader(
+                new FileInputStream(new File(cacheDir, DiskLruCache.JOURNAL_FILE)), Util.US_ASCII));
+        assertTrue(journal.contains("\nDIRTY a\n"));
+    }
+
+    @Test public void binaryJournalSurvivesReopen() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, true);
+        set("0123456789abcdef0123456789abcdef", "a", "aa");
+        set("0123456789abcdef0123456789abcdef_10x10", "b", "bb");
+        cache.get("0123456789abcdef0123456789abcdef").close();
+        cache.remove("0123456789abcdef0123456789abcdef_10x10");
+        set("c", "c", "cc");
+        cache.close();
+        assertTrue(isBinary(new File(cacheDir, DiskLruCache.JOURNAL_FILE)));
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, true);
+        assertEquals("aa", cache.get("0123456789abcdef0123456789abcdef").getString(1));
+        assertNull(cache.get("0123456789abcdef0123456789abcdef_10x10"));
+        assertEquals("cc", cache.get("c").getString(1));
+        assertEquals(6, cache.size());
+    }
+
+    @Test public void journalMigratesBetweenFormats() throws Exception {
+        set("a", "a", "aa");
+        cache.close();
+        File journal = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+        assertFalse(isBinary(journal));
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, true);
+        assertTrue(isBinary(journal));
+        assertEquals("aa", cache.get("a").getString(1));
+        set("b", "b", "bb");
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, false);
+        assertFalse(isBinary(journal));
+        assertEquals("aa", cache.get("a").getString(1));
+        assertEquals("bb", cache.get("b").getString(1));
+    }
+
+    @Test public void truncatedBinaryJournalTailIsDropped() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, true);
+        set("a", "a", "aa");
+        set("b", "b", "bb");
+        cache.close();
+        File journal = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            // Cuts the sequence number off the CLEAN record of "b".
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, true);
+        assertEquals("aa", cache.get("a").getString(1));
+        // "b" was never committed as far as the journal knows.
+        assertNull(cache.get("b"));
+        assertFalse(new File(cacheDir, "b.0").exists());
+        // The journal was rebuilt, so records appended now are readable.
+        set("c", "c", "cc");
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, true);
+        assertEquals("aa", cache.get("a").getString(1));
+        assertEquals("cc", cache.get("c").getString(1));
+    }
+
+    @Test public void replaysJournalAfterCheckpoint() throws Exception {
+        for (boolean binary : new boolean[] {false, true}) {
+            cache.close();
+            Util.deleteContents(cacheDir);
+            cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, binary);
+            set("a", "a", "aa");
+            set("b", "b", "bb");
+            awaitCheckpoint();
+            set("a", "x", "xx");
+            cache.remove("b");
+            set("c", "c", "cc");
+            cache.close();
+
+            cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE, binary);
+            // Still there, so it was used rather than discarded.
+            assertTrue(new File(cacheDir, DiskLruCache.CHECKPOINT_FILE).exists());
+            assertEquals("xx", cache.get("a").getString(1));
+            assertNull(cache.get("b"));
+            assertEquals("cc", cache.get("c").getString(1));
+            assertEquals(6, cache.size());
+            // Sequence numbers continue past the checkpointed ones.
+            DiskLruCache.Snapshot snapshot = cache.get("c");
+            set("c", "d", "dd");
+            assertNull(snapshot.edit());
+            snapshot.close();
+        }
+    }
+
+    @Test public void checkpointPastJournalEndIsIgnored() throws Exception {
+        set("a", "a", "aa");
+        awaitCheckpoint();
+        cache.close();
+        File journal = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+        File checkpointFile = new File(cacheDir, DiskLruCache.CHECKPOINT_FILE);
+        // An empty index that would hide "a" if it were used.
+        new IndexCheckpoint(false, journal.length() + 1, 1, 0, 0, new byte[0], 0, 0)
+                .writeTo(checkpointFile, 100, 2);
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE);
+        assertFalse(checkpointFile.exists());
+        assertEquals("aa", cache.get("a").getString(1));
+    }
+
+    @Test public void corruptCheckpointIsIgnored() throws Exception {
+        set("a", "a", "aa");
+        set("b", "b", "bb");
+        awaitCheckpoint();
+        cache.close();
+        File checkpointFile = new File(cacheDir, DiskLruCache.CHECKPOINT_FILE);
+        RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw");
+        try {
+            // The last byte of the last record, just before the CRC.
+            file.seek(file.length() - 9);
+            int b = file.read();
+            file.seek(file.length() - 9);
+            file.write(b ^ 0x01);
+        } finally {
+            file.close();
+        }
+
+        cache = DiskLruCache.open(cacheDir, 100, 2, Integer.MAX_VALUE);
+        assertFalse(checkpointFile.exists());
+        assertEquals("aa", cache.get("a").getString(1));
+        assertEquals("bb", cache.get("b").getString(1));
+    }
+
+    void set(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    static void writeFile(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Util.UTF_8);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    static boolean isBinary(File journal) throws IOException {
+        byte[] header = new byte[4];
+        InputStream in = new FileInputStream(journal);
+        try {
+            return in.read(header) == header.length && BinaryJournal.isBinary(header, header.length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Reads an entry until the journal tail is long enough to checkpoint. */
+    void awaitCheckpoint() throws Exception {
+        for (int i = 0; i < DiskLruCache.CHECKPOINT_INTERVAL; i++) {
+            cache.get("a").close();
+        }
+        awaitExecutor();
+        assertTrue(new File(cacheDir, DiskLruCache.CHECKPOINT_FILE).exists());
+    }
+
+    /**
+     * Waits for the cleanup and eviction tasks queued so far, and for the
+     * ones they queue, like the listener calls that delete evicted files.
+     */
+    void awaitExecutor() throws Exception {
+        do {
+            cache.executorService.submit(new Callable<Void>() {
+                @Override public Void call() {
+                    return null;
+                }
+            }).get();
+        } while (!cache.executorService.getQueue().isEmpty());
+    }
+}
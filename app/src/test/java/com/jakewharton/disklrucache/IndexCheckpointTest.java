@@ -0,0 +1,100 @@
+package com.jakewharton.disklrucache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public final class IndexCheckpointTest {
+    private File dir;
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        dir = File.createTempFile("IndexCheckpointTest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        file = new File(dir, DiskLruCache.CHECKPOINT_FILE);
+    }
+
+    @After public void tearDown() throws Exception {
+        Util.deleteContents(dir);
+        dir.delete();
+    }
+
+    @Test public void roundTrip() throws Exception {
+        checkpoint().writeTo(file, 100, 2);
+
+        IndexCheckpoint read = IndexCheckpoint.read(file, 100, 2);
+        assertNotNull(read);
+        assertTrue(read.binaryJournal);
+        assertEquals(1234, read.journalOffset);
+        assertEquals(7, read.nextSequenceNumber);
+        assertEquals(3, read.redundantOpCount);
+        assertEquals(2, read.entryCount);
+        BinaryJournal.Reader reader = read.newReader(2);
+        assertTrue(reader.next());
+        assertEquals(BinaryJournal.OP_CLEAN, reader.op);
+        assertEquals("a", reader.key);
+        assertArrayEquals(new long[] {1, 2}, reader.lengths);
+        assertEquals(5, reader.sequenceNumber);
+        assertTrue(reader.next());
+        assertEquals(BinaryJournal.OP_DIRTY, reader.op);
+        assertEquals("b", reader.key);
+        assertFalse(reader.next());
+        assertFalse(reader.truncated);
+    }
+
+    @Test public void rejectsAnyCorruptedByte() throws Exception {
+        checkpoint().writeTo(file, 100, 2);
+        long length = file.length();
+        for (long pos = 0; pos < length; pos++) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(pos);
+                int b = raf.read();
+                raf.seek(pos);
+                raf.write(b ^ 0x01);
+                assertNull("byte " + pos, IndexCheckpoint.read(file, 100, 2));
+                raf.seek(pos);
+                raf.write(b);
+            } finally {
+                raf.close();
+            }
+        }
+        assertNotNull(IndexCheckpoint.read(file, 100, 2));
+    }
+
+    @Test public void rejectsTruncatedFile() throws Exception {
+        checkpoint().writeTo(file, 100, 2);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        assertNull(IndexCheckpoint.read(file, 100, 2));
+    }
+
+    @Test public void rejectsOtherCaches() throws Exception {
+        checkpoint().writeTo(file, 100, 2);
+        assertNull(IndexCheckpoint.read(file, 101, 2));
+        assertNull(IndexCheckpoint.read(file, 100, 1));
+        assertNull(IndexCheckpoint.read(new File(dir, "missing"), 100, 2));
+    }
+
+    private static IndexCheckpoint checkpoint() {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        BinaryJournal.RecordBuffer buffer = new BinaryJournal.RecordBuffer();
+        buffer.clean("a", new long[] {1, 2}, 5);
+        records.write(buffer.bytes, 0, buffer.length);
+        buffer.record(BinaryJournal.OP_DIRTY, "b");
+        records.write(buffer.bytes, 0, buffer.length);
+        byte[] bytes = records.toByteArray();
+        return new IndexCheckpoint(true, 1234, 7, 3, 2, bytes, 0, bytes.length);
+    }
+}
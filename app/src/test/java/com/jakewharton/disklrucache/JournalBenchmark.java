@@ -0,0 +1,90 @@
+package com.jakewharton.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+/**
+ * Compares the size of the text and binary journals and the time it takes to
+ * open a cache with each, with and without an index checkpoint. Not run with
+ * the unit tests:
+ *
+ * <pre>java com.jakewharton.disklrucache.JournalBenchmark [entries]</pre>
+ *
+ * Each entry has an MD5 key, like the image caches, and two small values.
+ * A freshly filled cache has a DIRTY and a CLEAN record per entry. Opening it
+ * in the other format rebuilds the journal with only a CLEAN record per
+ * entry, as compaction does. Filling the cache also writes an index
+ * checkpoint, so opening a freshly filled cache replays only the journal tail.
+ * It is then opened again with the checkpoint deleted, replaying the whole
+ * journal. A compacted journal has no checkpoint and is replayed in full.
+ */
+public final class JournalBenchmark {
+    private static final int OPENS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        for (boolean binary : new boolean[] {false, true}) {
+            File dir = File.createTempFile("JournalBenchmark", "");
+            dir.delete();
+            try {
+                fill(dir, entries, binary);
+                measure(dir, entries, binary, "appended, checkpoint");
+                check(new File(dir, DiskLruCache.CHECKPOINT_FILE).delete(), "no checkpoint");
+                measure(dir, entries, binary, "appended, full replay");
+                // Migrates the journal to the other format and back, compacting it.
+                measure(dir, entries, !binary, "compacted");
+                measure(dir, entries, binary, "compacted");
+            } finally {
+                Util.deleteContents(dir);
+                dir.delete();
+            }
+        }
+    }
+
+    private static void fill(File dir, int entries, boolean binary) throws Exception {
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, binary);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int i = 0; i < entries; i++) {
+            DiskLruCache.Editor editor = cache.edit(hex(md5.digest(Integer.toString(i).getBytes("UTF-8"))));
+            editor.set(0, "data");
+            editor.set(1, "width=100\nheight=100\n");
+            editor.commit();
+        }
+        cache.close();
+    }
+
+    /** Prints the journal size, then the best time to open the cache of several. */
+    private static void measure(File dir, int entries, boolean binary, String state) throws Exception {
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        // The first open migrates the journal if it is in the other format.
+        DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, binary).close();
+        long journalLength = journal.length();
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < OPENS; i++) {
+            long start = System.nanoTime();
+            DiskLruCache cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, binary);
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            check(cache.size() == entries * 25L, "lost entries");
+            cache.close();
+        }
+        check(journal.length() == journalLength, "journal changed while opening");
+        System.out.println(String.format(Locale.US, "%-6s journal, %d entries, %-21s: %9d bytes, open %7.1f ms",
+                binary ? "binary" : "text", entries, state, journalLength, bestNanos / 1e6));
+    }
+
+    private static void check(boolean condition, String message) throws IOException {
+        if (!condition) {
+            throw new IOException(message);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.jakewharton.disklrucache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public final class JournalWriterTest {
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    private RecordingOutputStream out;
+    private JournalWriter writer;
+
+    @Before public void setUp() {
+        out = new RecordingOutputStream();
+        writer = new JournalWriter(out, 0);
+    }
+
+    @After public void tearDown() throws Exception {
+        out.release();
+        writer.close();
+        assertNull(failure.get());
+    }
+
+    @Test public void awaitDurableReturnsOnlyAfterTheRecordIsFlushed() throws Exception {
+        out.hold();
+        final long record = writer.append("DIRTY a\n");
+        Thread committer = awaitDurable(record);
+        assertTrue(out.awaitWrite());
+        committer.join(200);
+        assertTrue(committer.isAlive());
+        assertEquals("", out.flushed());
+
+        out.release();
+        committer.join(5000);
+        assertFalse(committer.isAlive());
+        assertEquals("DIRTY a\n", out.flushed());
+    }
+
+    @Test public void recordsAppendedTogetherAreWrittenInOneBatch() throws Exception {
+        long last = 0;
+        StringBuilder expected = new StringBuilder();
+        // Holding the lock keeps the writer thread from taking a partial batch.
+        synchronized (writer) {
+            for (int i = 0; i < 50; i++) {
+                String record = "READ " + i + "\n";
+                last = writer.append(record);
+                expected.append(record);
+            }
+        }
+        writer.awaitDurable(last);
+        assertEquals(expected.toString(), out.flushed());
+        assertEquals(1, out.writeCount());
+        assertEquals(expected.length(), writer.appendedBytes());
+    }
+
+    @Test public void recordsAppendedDuringAWriteShareTheNextBatch() throws Exception {
+        out.hold();
+        Thread first = awaitDurable(writer.append("DIRTY a\n"));
+        assertTrue(out.awaitWrite());
+        Thread[] committers = new Thread[5];
+        for (int i = 0; i < committers.length; i++) {
+            committers[i] = awaitDurable(writer.append("DIRTY " + i + "\n"));
+        }
+
+        out.release();
+        first.join(5000);
+        for (Thread committer : committers) {
+            committer.join(5000);
+            assertFalse(committer.isAlive());
+        }
+        assertEquals(2, out.writeCount());
+        assertEquals("DIRTY a\nDIRTY 0\nDIRTY 1\nDIRTY 2\nDIRTY 3\nDIRTY 4\n", out.flushed());
+    }
+
+    @Test public void unrequestedRecordsAreWrittenAfterTheBatchDelay() throws Exception {
+        long start = System.nanoTime();
+        writer.append("READ a\n");
+        long deadline = start + TimeUnit.SECONDS.toNanos(5);
+        while (out.flushed().isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals("READ a\n", out.flushed());
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(JournalWriter.BATCH_DELAY_MS));
+    }
+
+    @Test public void writeFailureIsReportedToWaiters() throws Exception {
+        out.fail = true;
+        long record = writer.append("DIRTY a\n");
+        try {
+            writer.awaitDurable(record);
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            writer.append("DIRTY b\n");
+            fail();
+        } catch (IOException expected) {
+        }
+        out.fail = false;
+        writer.reset(new ByteArrayOutputStream(), 0);
+    }
+
+    /** Waits for {@code record} on a new thread, which ends once it is durable. */
+    private Thread awaitDurable(final long record) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    writer.awaitDurable(record);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /** Records the flushed bytes and can hold the writer thread inside write(). */
+    private static final class RecordingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream flushed = new ByteArrayOutputStream();
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private int writeCount;
+        volatile boolean fail;
+
+        void hold() {
+            gate = new CountDownLatch(1);
+        }
+
+        void release() {
+            gate.countDown();
+        }
+
+        boolean awaitWrite() throws InterruptedException {
+            return writing.await(5, TimeUnit.SECONDS);
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            writing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+            if (fail) {
+                throw new IOException("failed");
+            }
+            synchronized (this) {
+                writeCount++;
+                written.write(b, off, len);
+            }
+        }
+
+        @Override public synchronized void flush() {
+            flushed.write(written.toByteArray(), 0, written.size());
+            written.reset();
+        }
+
+        synchronized int writeCount() {
+            return writeCount;
+        }
+
+        synchronized String flushed() {
+            return new String(flushed.toByteArray(), Util.US_ASCII);
+        }
+    }
+}